@@ -0,0 +1,194 @@
+package org.apertium.keyboard
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+import org.apertium.keyboard.hfstol.HfstLanguageModel
+import org.apertium.keyboard.tflite.LanguageModel
+import org.apertium.keyboard.tflite.LanguageModel.Device
+import org.apertium.keyboard.tflite.LanguageModel.Model
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+// History the models are run on once after loading, so that the first real
+// prediction doesn't pay for lazy initialisation
+private const val WARM_UP_HISTORY = "the "
+
+/**
+ * The language models of the app, loaded at most once however many keyboard
+ * service instances come and go. A service acquires the models it uses when
+ * it is created and releases them when it is destroyed; a model nobody uses
+ * stays loaded for the next service, until memory runs short. Models are
+ * loaded and warmed up in the background, and a model that was unloaded is
+ * loaded again by the next acquire.
+ *
+ * Everything but the loading itself happens on the main thread.
+ */
+class ModelRegistry(private val context: Context) {
+
+    /** How to load, warm up, trim, measure and close one model. */
+    class Kind<T>(
+        val name: String,
+        val load: (Context) -> T,
+        val warmUp: (T) -> Unit = {},
+        val trimCaches: (T) -> Unit = {},
+        val memoryBytes: (T) -> Long,
+        val close: (T) -> Unit = {}
+    )
+
+    private class Slot<T>(val kind: Kind<T>) {
+        var future: Future<T>? = null
+        var users = 0
+        val listeners = ArrayList<() -> Unit>()
+    }
+
+    // one thread each, so that the quicker model isn't held up by the other
+    private val loader: ExecutorService = Executors.newFixedThreadPool(2)
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val slots = LinkedHashMap<Kind<*>, Slot<*>>()
+
+    /**
+     * Takes a reference to the model of kind, starting to load it if it
+     * isn't loaded or its last load failed. onReady is called on the main
+     * thread whenever a load of the model finishes, until release.
+     */
+    fun <T> acquire(kind: Kind<T>, onReady: () -> Unit): Future<T> {
+        val slot = slotFor(kind)
+        slot.users++
+        slot.listeners.add(onReady)
+        val future = slot.future
+        if (future != null && !future.failed()) return future
+        return load(slot).also { slot.future = it }
+    }
+
+    /**
+     * Gives back a reference taken by acquire. The model stays loaded.
+     */
+    fun <T> release(kind: Kind<T>, onReady: () -> Unit) {
+        val slot = slotFor(kind)
+        slot.listeners.remove(onReady)
+        if (slot.users > 0) slot.users--
+    }
+
+    /**
+     * Frees memory according to how short of it the system is: the caches
+     * of the loaded models go first, and then the models nobody is using.
+     */
+    fun onTrimMemory(level: Int) {
+        when {
+            level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> {
+                trimCaches()
+                unloadIdle()
+            }
+            level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                && level < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN -> trimCaches()
+        }
+        Log.d(TAG, "After trimming at level $level: ${memoryUsage()}")
+    }
+
+    /** Empties the caches of the loaded models. */
+    fun trimCaches() {
+        for (slot in slots.values) trim(slot)
+    }
+
+    /** Unloads the models that no service is using. */
+    fun unloadIdle() {
+        for (slot in slots.values) {
+            if (slot.users == 0) unload(slot)
+        }
+    }
+
+    /**
+     * An estimate of the bytes taken by each loaded model, by name.
+     */
+    fun memoryUsage(): Map<String, Long> {
+        val usage = LinkedHashMap<String, Long>()
+        for (slot in slots.values) {
+            val bytes = measure(slot)
+            if (bytes != null) usage[slot.kind.name] = bytes
+        }
+        return usage
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T> slotFor(kind: Kind<T>): Slot<T> =
+        slots.getOrPut(kind) { Slot(kind) } as Slot<T>
+
+    private fun <T> load(slot: Slot<T>): Future<T> =
+        loader.submit(Callable<T> {
+            val start = SystemClock.elapsedRealtime()
+            val model = try {
+                slot.kind.load(context).also(slot.kind.warmUp)
+            } catch (e: Exception) {
+                Log.e(TAG, "Couldn't load the ${slot.kind.name} model", e)
+                throw e
+            }
+            Log.d(TAG, "Loaded the ${slot.kind.name} model in ${SystemClock.elapsedRealtime() - start} ms")
+            mainHandler.post {
+                for (listener in slot.listeners.toList()) listener()
+            }
+            model
+        })
+
+    private fun <T> trim(slot: Slot<T>) {
+        slot.future.loaded()?.let(slot.kind.trimCaches)
+    }
+
+    private fun <T> measure(slot: Slot<T>): Long? =
+        slot.future.loaded()?.let(slot.kind.memoryBytes)
+
+    private fun <T> unload(slot: Slot<T>) {
+        // a load still running is left to finish; only loaded models are dropped
+        val future = slot.future ?: return
+        if (!future.isDone) return
+        future.loaded()?.let(slot.kind.close)
+        slot.future = null
+        Log.d(TAG, "Unloaded the ${slot.kind.name} model")
+    }
+
+    private fun Future<*>.failed(): Boolean {
+        if (!isDone) return false
+        return try {
+            get()
+            false
+        } catch (e: ExecutionException) {
+            true
+        }
+    }
+
+    private fun <T> Future<T>?.loaded(): T? {
+        if (this == null || !isDone) return null
+        return try {
+            get()
+        } catch (e: ExecutionException) {
+            null
+        }
+    }
+
+    companion object {
+        private const val TAG = "ModelRegistry"
+
+        val TFLITE = Kind<LanguageModel>(
+            name = "tflite",
+            load = { LanguageModel.create(it, Model.FLOAT, Device.CPU, 4) },
+            warmUp = { it.generate(WARM_UP_HISTORY) },
+            memoryBytes = { it.memoryBytes },
+            close = { it.close() }
+        )
+
+        val HFSTOL = Kind<HfstLanguageModel>(
+            name = "hfstol",
+            load = { HfstLanguageModel(it) },
+            warmUp = { it.generate(WARM_UP_HISTORY) },
+            trimCaches = { it.trimCache() },
+            memoryBytes = { it.memoryBytes }
+        )
+    }
+}
@@ -1,14 +1,30 @@
 package org.apertium.keyboard
 
 import android.app.Application
+import android.content.ComponentCallbacks2
 //import org.apertium.keyboard.di.predictModule
 //import org.koin.android.ext.android.startKoin
 
 class SmartKeyboardApp : Application() {
 
+    /** The language models, shared by every instance of the keyboard service. */
+    lateinit var models: ModelRegistry
+        private set
+
     override fun onCreate() {
         super.onCreate()
         // start Koin!
         //startKoin(this, listOf(predictModule))
+        models = ModelRegistry(this)
+    }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        models.onTrimMemory(level)
+    }
+
+    override fun onLowMemory() {
+        super.onLowMemory()
+        models.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
     }
 }
@@ -0,0 +1,199 @@
+package org.apertium.keyboard.hfstol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of lookup results keyed by input, bounded by an estimate of the
+ * memory its entries take. Entries are evicted least recently used first,
+ * but a new entry only gets in if its key has been asked for more often
+ * than the keys it would push out. How often is kept by a small count-min
+ * sketch of every key asked for, which is halved from time to time so that
+ * old popularity fades. Words typed all day stay cached, and a one-off typo
+ * doesn't push them out.
+ *
+ * All methods are synchronized, so a cache can be shared between threads.
+ */
+public class AnalysisCache<V>
+{
+    /** A rough count of the bytes an entry takes besides its key and value. */
+    public static final int ENTRY_OVERHEAD = 64;
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final LinkedHashMap<String, Entry<V>> entries;
+    private final long budget;
+    private long used;
+
+    private final int[] sketch;
+    private final int sketchMask;
+    private int samples;
+    private final int sampleLimit;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    /**
+     * @param budget the most bytes the entries should take, as estimated by
+     * the callers of put
+     * @param expectedEntries about how many entries the budget holds, which
+     * sizes the frequency sketch
+     */
+    public AnalysisCache(long budget, int expectedEntries)
+    {
+	this.budget = budget;
+	entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+	int width = Integer.highestOneBit(Math.max(16, expectedEntries)*2);
+	sketch = new int[SKETCH_DEPTH*width];
+	sketchMask = width - 1;
+	sampleLimit = width*8;
+    }
+
+    /**
+     * The value cached for key, or null. Either way, counts key as asked for.
+     */
+    public synchronized V get(String key)
+    {
+	record(key);
+	Entry<V> entry = entries.get(key);
+	if (entry == null)
+	    {
+		++misses;
+		return null;
+	    }
+	++hits;
+	return entry.value;
+    }
+
+    /**
+     * Caches value for key, if the key is asked for often enough to be
+     * worth what it would push out.
+     *
+     * @param bytes an estimate of the memory key and value take
+     * @return whether the value was cached
+     */
+    public synchronized boolean put(String key, V value, int bytes)
+    {
+	bytes += ENTRY_OVERHEAD;
+	if (bytes > budget)
+	    {
+		++rejections;
+		return false;
+	    }
+	Entry<V> old = entries.remove(key);
+	if (old != null)
+	    { used -= old.bytes; }
+	// see whether there are enough less popular entries to make room
+	int frequency = frequency(key);
+	long freed = 0;
+	int victims = 0;
+	Iterator<Map.Entry<String, Entry<V>>> eldest = entries.entrySet().iterator();
+	while (used - freed + bytes > budget)
+	    {
+		Map.Entry<String, Entry<V>> victim = eldest.next();
+		if (old == null && frequency(victim.getKey()) >= frequency)
+		    {
+			++rejections;
+			return false;
+		    }
+		freed += victim.getValue().bytes;
+		++victims;
+	    }
+	eldest = entries.entrySet().iterator();
+	for (int i = 0; i < victims; ++i)
+	    {
+		eldest.next();
+		eldest.remove();
+	    }
+	evictions += victims;
+	used += bytes - freed;
+	entries.put(key, new Entry<V>(value, bytes));
+	return true;
+    }
+
+    public synchronized void clear()
+    {
+	entries.clear();
+	used = 0;
+    }
+
+    public synchronized int size()
+    { return entries.size(); }
+
+    /** The estimated bytes taken by the entries. */
+    public synchronized long getUsedBytes()
+    { return used; }
+
+    public long getBudget()
+    { return budget; }
+
+    public synchronized long getHits()
+    { return hits; }
+
+    public synchronized long getMisses()
+    { return misses; }
+
+    /** The number of entries pushed out to make room for others. */
+    public synchronized long getEvictions()
+    { return evictions; }
+
+    /** The number of values not cached, for being too big or too rare. */
+    public synchronized long getRejections()
+    { return rejections; }
+
+    public synchronized String toString()
+    {
+	return "AnalysisCache: " + entries.size() + " entries, " + used + "/" + budget
+	    + " bytes, " + hits + " hits, " + misses + " misses, "
+	    + evictions + " evictions, " + rejections + " rejections";
+    }
+
+    private void record(String key)
+    {
+	int hash = key.hashCode();
+	for (int row = 0; row < SKETCH_DEPTH; ++row)
+	    {
+		int cell = row*(sketchMask + 1) + slot(hash, row);
+		if (sketch[cell] < Integer.MAX_VALUE)
+		    { ++sketch[cell]; }
+	    }
+	if (++samples == sampleLimit)
+	    {
+		// age the counts
+		for (int i = 0; i < sketch.length; ++i)
+		    { sketch[i] >>>= 1; }
+		samples /= 2;
+	    }
+    }
+
+    private int frequency(String key)
+    {
+	int hash = key.hashCode();
+	int least = Integer.MAX_VALUE;
+	for (int row = 0; row < SKETCH_DEPTH; ++row)
+	    { least = Math.min(least, sketch[row*(sketchMask + 1) + slot(hash, row)]); }
+	return least;
+    }
+
+    private int slot(int hash, int row)
+    {
+	int h = hash*SEEDS[row];
+	return (h ^ (h >>> 16)) & sketchMask;
+    }
+
+    private static class Entry<V>
+    {
+	final V value;
+	final int bytes;
+
+	Entry(V v, int b)
+	{
+	    value = v;
+	    bytes = b;
+	}
+    }
+}
@@ -0,0 +1,133 @@
+package org.apertium.keyboard.hfstol;
+
+/**
+ * The analyses found by one lookup, kept as a run of output symbol numbers
+ * and a weight for each. The arrays are reused from one lookup to the next
+ * and only grow, and an analysis is only spelled out as characters when it
+ * is asked for.
+ */
+public class AnalysisResults
+{
+    private TransducerAlphabet alphabet;
+    private int count;
+    private int[] symbols;
+    private int symbolCount;
+    private int[] ends;
+    private float[] weights;
+    private boolean truncated;
+
+    public AnalysisResults(TransducerAlphabet a)
+    {
+	alphabet = a;
+	symbols = new int[256];
+	ends = new int[16];
+	weights = new float[16];
+    }
+
+    void clear()
+    {
+	count = 0;
+	symbolCount = 0;
+	truncated = false;
+    }
+
+    void setTruncated()
+    { truncated = true; }
+
+    /**
+     * Whether the lookup ran out of budget, so that there may be analyses
+     * missing.
+     */
+    public boolean isTruncated()
+    { return truncated; }
+
+    void add(int[] output, int length, float weight)
+    {
+	if (count == ends.length)
+	    {
+		ends = java.util.Arrays.copyOf(ends, count*2);
+		weights = java.util.Arrays.copyOf(weights, count*2);
+	    }
+	if (symbolCount + length > symbols.length)
+	    {
+		symbols = java.util.Arrays.copyOf(symbols, Math.max(symbols.length*2, symbolCount + length));
+	    }
+	System.arraycopy(output, 0, symbols, symbolCount, length);
+	symbolCount += length;
+	ends[count] = symbolCount;
+	weights[count] = weight;
+	++count;
+    }
+
+    public int size()
+    { return count; }
+
+    public float getWeight(int i)
+    { return weights[i]; }
+
+    /**
+     * Position in getSymbols() of the first output symbol of analysis i.
+     */
+    public int getStart(int i)
+    { return i == 0 ? 0 : ends[i - 1]; }
+
+    public int getEnd(int i)
+    { return ends[i]; }
+
+    /**
+     * All the output symbols, analysis after analysis. Only the range given
+     * by getStart() and getEnd() of each analysis is meaningful.
+     */
+    public int[] getSymbols()
+    { return symbols; }
+
+    /**
+     * The number of characters in the output of analysis i.
+     */
+    public int getOutputLength(int i)
+    {
+	char[][] chars = alphabet.symbolChars;
+	int length = 0;
+	for (int pos = getStart(i); pos < ends[i]; ++pos)
+	    { length += chars[symbols[pos]].length; }
+	return length;
+    }
+
+    /**
+     * Copies the output of analysis i into dest from offset on, which must
+     * have room for getOutputLength(i) characters.
+     *
+     * @return the position in dest just after the output
+     */
+    public int getOutput(int i, char[] dest, int offset)
+    {
+	char[][] chars = alphabet.symbolChars;
+	for (int pos = getStart(i); pos < ends[i]; ++pos)
+	    {
+		char[] symbol = chars[symbols[pos]];
+		System.arraycopy(symbol, 0, dest, offset, symbol.length);
+		offset += symbol.length;
+	    }
+	return offset;
+    }
+
+    /**
+     * Appends the output of analysis i to out.
+     */
+    public void appendOutput(int i, StringBuilder out)
+    {
+	char[][] chars = alphabet.symbolChars;
+	for (int pos = getStart(i); pos < ends[i]; ++pos)
+	    { out.append(chars[symbols[pos]]); }
+    }
+
+    /**
+     * Spells out the output of analysis i.
+     */
+    public String getOutput(int i)
+    {
+	char[] output = new char[getOutputLength(i)];
+	getOutput(i, output, 0);
+	return new String(output);
+    }
+}
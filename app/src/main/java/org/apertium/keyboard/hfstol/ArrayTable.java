@@ -0,0 +1,43 @@
+package org.apertium.keyboard.hfstol;
+
+/**
+ * Entries decoded into parallel primitive arrays, as by a TableDecoder.
+ * Index tables have no outputs and unweighted tables no weights.
+ */
+final class ArrayTable implements TableLayout
+{
+    private final char[] inputs;
+    private final char[] outputs;
+    private final int[] targets;
+    private final float[] weights;
+
+    ArrayTable(char[] inputs, char[] outputs, int[] targets, float[] weights)
+    {
+	this.inputs = inputs;
+	this.outputs = outputs;
+	this.targets = targets;
+	this.weights = weights;
+    }
+
+    public int size()
+    { return inputs.length; }
+
+    public int getInput(int i)
+    { return inputs[i]; }
+
+    public int getOutput(int i)
+    { return outputs[i]; }
+
+    public long getTarget(int i)
+    { return targets[i] & 0xFFFFFFFFL; }
+
+    public float getWeight(int i)
+    { return weights == null ? 0.0f : weights[i]; }
+
+    public long getHeapBytes()
+    {
+	long count = inputs.length;
+	return count*2 + count*4 + (outputs != null ? count*2 : 0)
+	    + (weights != null ? count*4 : 0);
+    }
+}
@@ -0,0 +1,46 @@
+package org.apertium.keyboard.hfstol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Entries read in place from a little-endian buffer in the hfstol layout:
+ * an index entry is an input and a target, and a transition an input, an
+ * output, a target and, if the transducer is weighted, a weight.
+ */
+final class BufferTable implements TableLayout
+{
+    private final ByteBuffer table;
+    private final int count;
+    private final int entrySize;
+    private final int targetAt;
+
+    /**
+     * Reads count entries from buffer's position, leaving buffer after
+     * them.
+     */
+    BufferTable(ByteBuffer buffer, int count, boolean transitions, boolean weighted)
+    {
+	entrySize = !transitions ? 6 : weighted ? 12 : 8;
+	targetAt = transitions ? 4 : 2;
+	table = Transducer.sliceTable(buffer, count*entrySize);
+	this.count = count;
+    }
+
+    public int size()
+    { return count; }
+
+    public int getInput(int i)
+    { return table.getShort(i*entrySize) & 0xFFFF; }
+
+    public int getOutput(int i)
+    { return table.getShort(i*entrySize + 2) & 0xFFFF; }
+
+    public long getTarget(int i)
+    { return table.getInt(i*entrySize + targetAt) & 0xFFFFFFFFL; }
+
+    public float getWeight(int i)
+    { return entrySize == 12 ? table.getFloat(i*entrySize + 8) : 0.0f; }
+
+    public long getHeapBytes()
+    { return 0; }
+}
@@ -0,0 +1,202 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A smaller file format for transducers, meant to be shipped in place of
+ * hfstol and mapped. Symbols take a byte rather than two when there are
+ * few enough of them, weights are replaced by their number in a codebook,
+ * and targets are bit-packed, as described in PackedTable. The tables are
+ * read in place like those of a mapped hfstol file, with each entry
+ * decoded as it is looked at.
+ *
+ * The layout is little-endian throughout, with each section starting on an
+ * 8-byte boundary:
+ *   magic, version
+ *   the 56-byte hfstol header
+ *   the alphabet, as in TransducerSnapshot
+ *   codebook size, then the bits of each weight in the codebook
+ *   the index table and the transition table, each a PackedTable section
+ */
+public class CompactTransducer
+{
+    public static final int VERSION = 1;
+
+    private static final long MAGIC = 0x4b4341504c4f4648L; // "HFOLPACK"
+
+    /**
+     * Whether file starts like a compact transducer file rather than an
+     * hfstol one.
+     */
+    public static boolean isCompact(File file) throws IOException
+    {
+	if (file.length() < 8)
+	    { return false; }
+	FileInputStream stream = new FileInputStream(file);
+	try {
+	    ByteBuffer magic = ByteBuffer.allocate(8);
+	    magic.order(ByteOrder.LITTLE_ENDIAN);
+	    FileChannel channel = stream.getChannel();
+	    while (magic.hasRemaining() && channel.read(magic) >= 0)
+		{ }
+	    return !magic.hasRemaining() && magic.getLong(0) == MAGIC;
+	} finally {
+	    stream.close();
+	}
+    }
+
+    /**
+     * Whether buffer is positioned at the start of a compact transducer.
+     */
+    static boolean isCompact(ByteBuffer buffer)
+    {
+	return buffer.remaining() >= 8 &&
+	    buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).getLong() == MAGIC;
+    }
+
+    /**
+     * Maps a compact transducer file.
+     */
+    public static Transducer map(File file) throws IOException, FormatException
+    {
+	ByteBuffer buffer;
+	FileInputStream stream = new FileInputStream(file);
+	try {
+	    FileChannel channel = stream.getChannel();
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	} finally {
+	    stream.close();
+	}
+	return load(buffer);
+    }
+
+    /**
+     * Reads a compact transducer from buffer, which is positioned at its
+     * magic number. The tables are not copied out of buffer.
+     */
+    public static Transducer load(ByteBuffer buffer) throws IOException, FormatException
+    {
+	buffer = buffer.slice();
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+	if (buffer.remaining() < 16 ||
+	    buffer.getLong() != MAGIC ||
+	    buffer.getInt() != VERSION)
+	    { throw new FormatException(); }
+	buffer.getInt();
+	TransducerHeader h = new TransducerHeader(buffer);
+	TransducerAlphabet a = TransducerSnapshot.readAlphabet(buffer);
+	TransducerSnapshot.align(buffer);
+	int[] codebook = new int[buffer.getInt()];
+	buffer.asIntBuffer().get(codebook);
+	buffer.position(buffer.position() + codebook.length*4);
+	TransducerSnapshot.align(buffer);
+	IndexTable indices = new IndexTable(new PackedTable(buffer, false, codebook));
+	TransitionTable transitions = new TransitionTable(new PackedTable(buffer, true, codebook));
+	Tokenizer tokenizer = new Tokenizer(a, h.getInputSymbolCount());
+	return TransducerLoader.create(h, a, indices, transitions, tokenizer);
+    }
+
+    /**
+     * Writes t to file in the compact format, under a temporary name that is
+     * then renamed.
+     */
+    public static void write(Transducer t, File file) throws IOException
+    {
+	TransducerHeader h = t.getHeader();
+	IndexTable indices = t.getIndexTable();
+	TransitionTable transitions = t.getTransitionTable();
+	// the codebook has every transition weight, then every final weight
+	// of an index entry, as their bits so that -0.0 and NaNs survive
+	Map<Integer, Integer> numbers = new HashMap<Integer, Integer>();
+	if (h.isWeighted())
+	    {
+		for (int i = 0; i < transitions.size(); ++i)
+		    { number(numbers, Float.floatToRawIntBits(transitions.getWeight(i))); }
+	    }
+	int transitionWeights = numbers.size();
+	for (int i = 0; i < indices.size(); ++i)
+	    {
+		if (indices.isFinal(i))
+		    { number(numbers, (int) indices.getTarget(i)); }
+	    }
+	int[] codebook = new int[numbers.size()];
+	for (Map.Entry<Integer, Integer> entry : numbers.entrySet())
+	    { codebook[entry.getValue()] = entry.getKey(); }
+	int symbolWidth = h.getSymbolCount() <= 0xFF ? 1 : 2;
+	int weightWidth;
+	if (!h.isWeighted())
+	    { weightWidth = 0; }
+	else if (transitionWeights <= 0x100)
+	    { weightWidth = 1; }
+	else if (transitionWeights <= 0x10000)
+	    { weightWidth = 2; }
+	else
+	    { weightWidth = 4; }
+
+	File partial = new File(file.getPath() + ".partial");
+	FileOutputStream stream = new FileOutputStream(partial);
+	try {
+	    TransducerSnapshot.Output out = new TransducerSnapshot.Output(stream.getChannel());
+	    out.buffer.putLong(MAGIC);
+	    out.buffer.putInt(VERSION);
+	    out.buffer.putInt(0);
+	    h.write(out.buffer);
+	    TransducerSnapshot.writeAlphabet(out, t.getAlphabet());
+	    out.align();
+	    out.reserve(4);
+	    out.buffer.putInt(codebook.length);
+	    for (int bits : codebook)
+		{
+		    out.reserve(4);
+		    out.buffer.putInt(bits);
+		}
+	    out.align();
+	    PackedTable.write(out, indices, symbolWidth, numbers);
+	    PackedTable.write(out, transitions, symbolWidth, weightWidth, numbers);
+	    out.flush();
+	} finally {
+	    stream.close();
+	}
+	if (!partial.renameTo(file))
+	    {
+		partial.delete();
+		throw new IOException("Couldn't move compact transducer into place at " + file);
+	    }
+    }
+
+    private static void number(Map<Integer, Integer> numbers, int bits)
+    {
+	if (!numbers.containsKey(bits))
+	    { numbers.put(bits, numbers.size()); }
+    }
+
+    /**
+     * Converts an hfstol file to the compact format.
+     */
+    public static void main(String[] argv) throws IOException
+    {
+	if (argv.length != 2)
+	    {
+		System.err.println("Usage: java CompactTransducer HFSTOL_FILE COMPACT_FILE");
+		System.exit(1);
+	    }
+	File source = new File(argv[0]);
+	File target = new File(argv[1]);
+	try {
+	    write(TransducerLoader.map(source), target);
+	}
+	catch (FormatException e) {
+	    System.err.println("File must be in hfst optimized-lookup format");
+	    System.exit(1);
+	}
+	System.out.println(source.length() + " bytes in, " + target.length() + " bytes out");
+    }
+}
@@ -0,0 +1,641 @@
+package org.apertium.keyboard.hfstol;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Looks up input in the composition of two transducers without ever
+ * building it: the first, an error model say, reads the input, and the
+ * second, a lexicon, reads what the first writes and writes the results.
+ * A state of the composition is a pair of states, one in each transducer,
+ * and only the pairs the input leads to are ever looked at. The
+ * transitions found out of a pair are kept in a bounded cache, so that the
+ * states the lookups of a session keep coming back to are only worked out
+ * once, while memory stays capped however many pairs there are.
+ *
+ * Symbols are passed from the first transducer to the second by spelling,
+ * and symbols the second doesn't know end the path. Flag diacritics are
+ * kept separately for each transducer. Moves of one transducer alone
+ * commute with moves of the other alone, so once the second has moved
+ * alone the first may not until they next move together, which leaves one
+ * path for each way of pairing their transitions. The search is the
+ * best-first one of LookupEngine, so the same budgets apply and weights
+ * must not be negative; an output reached along several paths is only
+ * given once, with its lightest weight.
+ *
+ * Like a LookupEngine, an engine holds the state of one lookup at a time
+ * and must not be shared between threads, while the transducers can be.
+ */
+public class CompositionEngine
+{
+    /** The number of cache slots used by the two-argument constructor. */
+    public static final int DEFAULT_CACHE_SLOTS = 4096;
+
+    private final Transducer first;
+    private final Transducer second;
+    private final FlagDiacriticOperation[] firstFlags;
+    private final FlagDiacriticOperation[] secondFlags;
+    /** The input symbol of the second for each output symbol of the first, or NO_SYMBOL_NUMBER. */
+    private final int[] passed;
+    private final AnalysisResults results;
+
+    // the budget of the current lookup
+    private long deadline;
+    private int maxExpansions;
+    private int depthLimit;
+    private int expansions;
+    private boolean stopped;
+
+    /** Input symbols of the first transducer, terminated by NO_SYMBOL_NUMBER. */
+    private int[] input;
+    private int[] output;
+
+    // the cache of transitions out of pairs, direct-mapped: a slot holds the
+    // transitions on one input symbol, or the epsilons, out of one pair
+    private final long[] slotFirst;
+    private final long[] slotSecond;
+    private final int[] slotSymbol;
+    private final Arcs[] slotArcs;
+    private int cached;
+    private long hits;
+    private long misses;
+
+    // the nodes and heap of the search
+    private int nodeCount;
+    private long[] nodeFirst;
+    private long[] nodeSecond;
+    private boolean[] nodeFinal;
+    private int[] nodeParent;
+    private int[] nodeSymbol;
+    private int[] nodeLength;
+    private int[] nodeDepth;
+    private int[] nodeInput;
+    private float[] nodeWeight;
+    private int[] nodeFirstRow;
+    private int[] nodeSecondRow;
+    /** Whether the last move to the node was the second's alone. */
+    private boolean[] nodeSecondAlone;
+    private int heapSize;
+    private int[] heap;
+    private final FlagRows firstRows;
+    private final FlagRows secondRows;
+
+    public CompositionEngine(Transducer first, Transducer second)
+    { this(first, second, DEFAULT_CACHE_SLOTS); }
+
+    /**
+     * @param cacheSlots the number of sets of transitions to keep, rounded
+     * up to a power of two
+     */
+    public CompositionEngine(Transducer first, Transducer second, int cacheSlots)
+    {
+	this.first = first;
+	this.second = second;
+	firstFlags = first.alphabet.flagOperations;
+	secondFlags = second.alphabet.flagOperations;
+	results = new AnalysisResults(second.alphabet);
+	passed = passedSymbols(first.alphabet, second.alphabet, second.header.getInputSymbolCount());
+	int slots = Integer.highestOneBit(Math.max(2, cacheSlots - 1))*2;
+	slotFirst = new long[slots];
+	slotSecond = new long[slots];
+	slotSymbol = new int[slots];
+	Arrays.fill(slotSymbol, -1);
+	slotArcs = new Arcs[slots];
+	input = new int[64];
+	output = new int[64];
+	int nodes = 64;
+	nodeFirst = new long[nodes];
+	nodeSecond = new long[nodes];
+	nodeFinal = new boolean[nodes];
+	nodeParent = new int[nodes];
+	nodeSymbol = new int[nodes];
+	nodeLength = new int[nodes];
+	nodeDepth = new int[nodes];
+	nodeInput = new int[nodes];
+	nodeWeight = new float[nodes];
+	nodeFirstRow = new int[nodes];
+	nodeSecondRow = new int[nodes];
+	nodeSecondAlone = new boolean[nodes];
+	heap = new int[nodes];
+	firstRows = new FlagRows(first.alphabet.features);
+	secondRows = new FlagRows(second.alphabet.features);
+    }
+
+    /**
+     * The results of the last lookup, refilled by every lookup.
+     */
+    public AnalysisResults getResults()
+    { return results; }
+
+    /**
+     * Looks up the n best outputs of str, or all of them if n isn't positive.
+     * If either transducer has input epsilon cycles, "all" can be endless:
+     * the lookup then stops only at the depth limit of
+     * LookupBudget.CYCLIC_DEPTH, having followed every cycle that far, and
+     * marks the results truncated. Ask for n outputs, or pass a budget, to
+     * keep such lookups short.
+     *
+     * @return the number of outputs, or LookupEngine.NO_TOKENIZATION
+     */
+    public int analyze(CharSequence str, int n)
+    { return analyze(str, n, LookupBudget.UNLIMITED); }
+
+    /**
+     * Looks up the n best outputs of str, or all of them if n isn't
+     * positive, within budget. The depth limit for epsilon cycles applies
+     * if either transducer has them.
+     *
+     * @return the number of outputs, or LookupEngine.NO_TOKENIZATION
+     */
+    public int analyze(CharSequence str, int n, LookupBudget budget)
+    {
+	Tokenizer tokenizer = first.tokenizer;
+	int length = 0;
+	int pos = 0;
+	while (pos < str.length())
+	    {
+		int symbol = tokenizer.find(str, pos, str.length());
+		if (symbol == HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    {
+			results.clear();
+			return LookupEngine.NO_TOKENIZATION;
+		    }
+		pos += tokenizer.getLength(symbol);
+		input = LookupEngine.ensure(input, length + 2);
+		input[length++] = symbol;
+	    }
+	input[length] = HfstOptimizedLookup.NO_SYMBOL_NUMBER;
+	deadline = budget.deadline(System.nanoTime());
+	maxExpansions = budget.maxExpansions;
+	depthLimit = Math.min(budget.depthLimit(first), budget.depthLimit(second));
+	expansions = 0;
+	stopped = false;
+	return run(n);
+    }
+
+    /** The number of sets of transitions in the cache. */
+    public int getCachedCount()
+    { return cached; }
+
+    public long getCacheHits()
+    { return hits; }
+
+    public long getCacheMisses()
+    { return misses; }
+
+    /**
+     * Empties the cache of transitions.
+     */
+    public void clearCache()
+    {
+	Arrays.fill(slotSymbol, -1);
+	cached = 0;
+    }
+
+    private int run(int n)
+    {
+	results.clear();
+	nodeCount = 0;
+	heapSize = 0;
+	firstRows.clear();
+	secondRows.clear();
+	addNode(0, 0, -1, HfstOptimizedLookup.NO_SYMBOL_NUMBER, 0, 0.0f, 0, 0);
+	while (heapSize > 0 && (n <= 0 || results.size() < n) && !stopped)
+	    {
+		int node = poll();
+		if (nodeFinal[node])
+		    {
+			noteNode(node);
+			continue;
+		    }
+		addChildren(node, arcs(nodeFirst[node], nodeSecond[node], 0), nodeInput[node]);
+		int symbol = input[nodeInput[node]];
+		if (symbol == HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    { addFinal(node); }
+		else
+		    { addChildren(node, arcs(nodeFirst[node], nodeSecond[node], symbol), nodeInput[node] + 1); }
+	    }
+	return results.size();
+    }
+
+    /**
+     * Adds a child of node for each of arcs whose flags pass.
+     */
+    private void addChildren(int node, Arcs arcs, int inputPosition)
+    {
+	for (int a = 0; a < arcs.size; ++a)
+	    {
+		if (nodeSecondAlone[node] && arcs.moves[a] == FIRST_ALONE)
+		    { continue; }
+		int firstRow = nodeFirstRow[node];
+		int secondRow = nodeSecondRow[node];
+		if (arcs.flag[a] >= 0)
+		    {
+			if (arcs.moves[a] == FIRST_ALONE)
+			    { firstRow = firstRows.apply(firstRow, firstFlags[arcs.flag[a]]); }
+			else
+			    { secondRow = secondRows.apply(secondRow, secondFlags[arcs.flag[a]]); }
+			if (firstRow < 0 || secondRow < 0)
+			    { continue; }
+		    }
+		int length = nodeLength[node] + (arcs.output[a] != HfstOptimizedLookup.NO_SYMBOL_NUMBER ? 1 : 0);
+		if (!spend(nodeDepth[node] + 1, length))
+		    { continue; }
+		int child = addNode(arcs.first[a], arcs.second[a], node, arcs.output[a], inputPosition,
+				    nodeWeight[node] + arcs.weight[a], firstRow, secondRow);
+		nodeSecondAlone[child] = arcs.moves[a] == SECOND_ALONE;
+	    }
+    }
+
+    /**
+     * Adds a final node for node if both its states are final.
+     */
+    private void addFinal(int node)
+    {
+	float firstWeight = finalWeight(first, nodeFirst[node]);
+	if (Float.isNaN(firstWeight))
+	    { return; }
+	float secondWeight = finalWeight(second, nodeSecond[node]);
+	if (Float.isNaN(secondWeight))
+	    { return; }
+	int fin = addNode(0, 0, node, HfstOptimizedLookup.NO_SYMBOL_NUMBER, nodeInput[node],
+			  nodeWeight[node] + firstWeight + secondWeight,
+			  nodeFirstRow[node], nodeSecondRow[node]);
+	nodeFinal[fin] = true;
+    }
+
+    /**
+     * The final weight of state in t, or NaN if it isn't final.
+     */
+    private static float finalWeight(Transducer t, long state)
+    {
+	int index = LookupEngine.pivot(state);
+	if (state >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START)
+	    {
+		TransitionTable transitions = t.transitionTable;
+		if (index >= transitions.size() || !transitions.isFinal(index))
+		    { return Float.NaN; }
+		return transitions.getWeight(index);
+	    }
+	if (!t.indexTable.isFinal(index))
+	    { return Float.NaN; }
+	return t.header.isWeighted() ? t.indexTable.getFinalWeight(index) : 0.0f;
+    }
+
+    /**
+     * Notes a final node, unless an earlier one spelled the same output.
+     */
+    private void noteNode(int node)
+    {
+	char[][] chars = second.alphabet.symbolChars;
+	int length = nodeLength[node];
+	output = LookupEngine.ensure(output, length);
+	int end = length;
+	for (int at = node; at > 0; at = nodeParent[at])
+	    {
+		if (nodeSymbol[at] != HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    { output[--end] = nodeSymbol[at]; }
+	    }
+	int spelled = 0;
+	for (int pos = 0; pos < length; ++pos)
+	    {
+		if (chars[output[pos]].length > 0)
+		    { output[spelled++] = output[pos]; }
+	    }
+	int[] symbols = results.getSymbols();
+	for (int r = 0; r < results.size(); ++r)
+	    {
+		int start = results.getStart(r);
+		if (results.getEnd(r) - start != spelled)
+		    { continue; }
+		int pos = 0;
+		while (pos < spelled && symbols[start + pos] == output[pos])
+		    { ++pos; }
+		if (pos == spelled)
+		    { return; }
+	    }
+	results.add(output, spelled, nodeWeight[node]);
+    }
+
+    /**
+     * Counts one more configuration against the budget, as LookupEngine does.
+     */
+    private boolean spend(int depth, int outputLength)
+    {
+	if (stopped)
+	    { return false; }
+	if (depth >= depthLimit || outputLength > depthLimit)
+	    {
+		results.setTruncated();
+		return false;
+	    }
+	++expansions;
+	if ((maxExpansions > 0 && expansions > maxExpansions) ||
+	    (deadline != 0 && (expansions & 63) == 0 && System.nanoTime() - deadline > 0))
+	    {
+		stopped = true;
+		results.setTruncated();
+		return false;
+	    }
+	return true;
+    }
+
+    /**
+     * The transitions out of the pair of states on symbol, an input symbol
+     * of the first transducer, or on no input if symbol is 0: from the
+     * cache, or worked out and put in it.
+     */
+    private Arcs arcs(long firstState, long secondState, int symbol)
+    {
+	long h = (firstState*0x9E3779B97F4A7C15L) ^ (secondState*0xC2B2AE3D27D4EB4FL) ^ symbol;
+	int slot = (int) (h ^ (h >>> 29)) & (slotSymbol.length - 1);
+	Arcs arcs = slotArcs[slot];
+	if (slotSymbol[slot] == symbol && slotFirst[slot] == firstState && slotSecond[slot] == secondState)
+	    {
+		++hits;
+		return arcs;
+	    }
+	++misses;
+	if (arcs == null)
+	    {
+		arcs = new Arcs();
+		slotArcs[slot] = arcs;
+	    }
+	if (slotSymbol[slot] < 0)
+	    { ++cached; }
+	arcs.size = 0;
+	slotFirst[slot] = firstState;
+	slotSecond[slot] = secondState;
+	slotSymbol[slot] = symbol;
+	fill(arcs, firstState, secondState, symbol);
+	return arcs;
+    }
+
+    private void fill(Arcs arcs, long firstState, long secondState, int symbol)
+    {
+	IndexTable firstIndices = first.indexTable;
+	TransitionTable firstTransitions = first.transitionTable;
+	int index = LookupEngine.pivot(firstState);
+	boolean inTransitions = firstState >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START;
+	if (symbol == 0)
+	    {
+		// the first's epsilons and flags, and what they write
+		int i = LookupEngine.firstEpsilon(firstIndices, index, inTransitions);
+		while (i >= 0)
+		    {
+			int in = firstTransitions.getInput(i);
+			if (in < firstFlags.length && firstFlags[in] != null)
+			    {
+				arcs.add(FIRST_ALONE, firstTransitions.getTarget(i), secondState,
+					 HfstOptimizedLookup.NO_SYMBOL_NUMBER, firstTransitions.getWeight(i), in);
+			    }
+			else if (in == 0)
+			    { pass(arcs, i, secondState); }
+			else
+			    { break; }
+			++i;
+		    }
+		// and the second's, which read nothing from the first
+		TransitionTable secondTransitions = second.transitionTable;
+		i = LookupEngine.firstEpsilon(second.indexTable, LookupEngine.pivot(secondState),
+					      secondState >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START);
+		while (i >= 0)
+		    {
+			int in = secondTransitions.getInput(i);
+			boolean flag = in < secondFlags.length && secondFlags[in] != null;
+			if (!flag && in != 0)
+			    { break; }
+			arcs.add(SECOND_ALONE, firstState, secondTransitions.getTarget(i),
+				 flag ? HfstOptimizedLookup.NO_SYMBOL_NUMBER : secondTransitions.getOutput(i),
+				 secondTransitions.getWeight(i), flag ? in : -1);
+			++i;
+		    }
+		return;
+	    }
+	int i = LookupEngine.firstTransition(firstIndices, index, inTransitions, symbol);
+	if (i < 0)
+	    { return; }
+	while (firstTransitions.getInput(i) == symbol)
+	    {
+		pass(arcs, i, secondState);
+		++i;
+	    }
+    }
+
+    /**
+     * Adds the arcs that take transition i of the first transducer and
+     * pass what it writes on to the second from secondState.
+     */
+    private void pass(Arcs arcs, int i, long secondState)
+    {
+	TransitionTable firstTransitions = first.transitionTable;
+	long firstTarget = firstTransitions.getTarget(i);
+	float weight = firstTransitions.getWeight(i);
+	int written = firstTransitions.getOutput(i);
+	if (written == 0)
+	    {
+		arcs.add(FIRST_ALONE, firstTarget, secondState, HfstOptimizedLookup.NO_SYMBOL_NUMBER, weight, -1);
+		return;
+	    }
+	int symbol = written < passed.length ? passed[written] : HfstOptimizedLookup.NO_SYMBOL_NUMBER;
+	if (symbol == HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+	    { return; }
+	TransitionTable secondTransitions = second.transitionTable;
+	int j = LookupEngine.firstTransition(second.indexTable, LookupEngine.pivot(secondState),
+					     secondState >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START,
+					     symbol);
+	if (j < 0)
+	    { return; }
+	while (secondTransitions.getInput(j) == symbol)
+	    {
+		arcs.add(BOTH, firstTarget, secondTransitions.getTarget(j), secondTransitions.getOutput(j),
+			 weight + secondTransitions.getWeight(j), -1);
+		++j;
+	    }
+    }
+
+    /**
+     * For each symbol of the first alphabet, the input symbol of the second
+     * spelled the same, if any. Flags aren't passed on.
+     */
+    private static int[] passedSymbols(TransducerAlphabet from, TransducerAlphabet to, int toInputs)
+    {
+	HashMap<String, Integer> symbols = new HashMap<String, Integer>();
+	for (int s = 1; s < toInputs; ++s)
+	    {
+		if (s >= to.flagOperations.length || to.flagOperations[s] == null)
+		    { symbols.put(to.keyTable.get(s), s); }
+	    }
+	int[] passed = new int[from.keyTable.size()];
+	for (int s = 0; s < passed.length; ++s)
+	    {
+		Integer symbol = null;
+		if (s >= from.flagOperations.length || from.flagOperations[s] == null)
+		    { symbol = symbols.get(from.keyTable.get(s)); }
+		passed[s] = symbol != null ? symbol : HfstOptimizedLookup.NO_SYMBOL_NUMBER;
+	    }
+	return passed;
+    }
+
+    private int addNode(long firstState, long secondState, int parent, int symbol,
+			int inputPosition, float weight, int firstRow, int secondRow)
+    {
+	if (nodeCount == nodeFirst.length)
+	    {
+		int nodes = nodeCount*2;
+		nodeFirst = Arrays.copyOf(nodeFirst, nodes);
+		nodeSecond = Arrays.copyOf(nodeSecond, nodes);
+		nodeFinal = Arrays.copyOf(nodeFinal, nodes);
+		nodeParent = Arrays.copyOf(nodeParent, nodes);
+		nodeSymbol = Arrays.copyOf(nodeSymbol, nodes);
+		nodeLength = Arrays.copyOf(nodeLength, nodes);
+		nodeDepth = Arrays.copyOf(nodeDepth, nodes);
+		nodeInput = Arrays.copyOf(nodeInput, nodes);
+		nodeWeight = Arrays.copyOf(nodeWeight, nodes);
+		nodeFirstRow = Arrays.copyOf(nodeFirstRow, nodes);
+		nodeSecondRow = Arrays.copyOf(nodeSecondRow, nodes);
+		nodeSecondAlone = Arrays.copyOf(nodeSecondAlone, nodes);
+		heap = Arrays.copyOf(heap, nodes);
+	    }
+	int node = nodeCount++;
+	nodeFirst[node] = firstState;
+	nodeSecond[node] = secondState;
+	nodeFinal[node] = false;
+	nodeParent[node] = parent;
+	nodeSymbol[node] = symbol;
+	nodeLength[node] = parent < 0 ? 0 : nodeLength[parent];
+	if (symbol != HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+	    { ++nodeLength[node]; }
+	nodeDepth[node] = parent < 0 ? 0 : nodeDepth[parent] + 1;
+	nodeInput[node] = inputPosition;
+	nodeWeight[node] = weight;
+	nodeFirstRow[node] = firstRow;
+	nodeSecondRow[node] = secondRow;
+	nodeSecondAlone[node] = false;
+	// sift up
+	int at = heapSize++;
+	while (at > 0)
+	    {
+		int up = (at - 1) >>> 1;
+		if (!before(node, heap[up]))
+		    { break; }
+		heap[at] = heap[up];
+		at = up;
+	    }
+	heap[at] = node;
+	return node;
+    }
+
+    private int poll()
+    {
+	int top = heap[0];
+	int last = heap[--heapSize];
+	int at = 0;
+	while (true)
+	    {
+		int child = 2*at + 1;
+		if (child >= heapSize)
+		    { break; }
+		if (child + 1 < heapSize && before(heap[child + 1], heap[child]))
+		    { ++child; }
+		if (!before(heap[child], last))
+		    { break; }
+		heap[at] = heap[child];
+		at = child;
+	    }
+	if (heapSize > 0)
+	    { heap[at] = last; }
+	return top;
+    }
+
+    /** Lighter first, and older first among equals, as in LookupEngine. */
+    private boolean before(int a, int b)
+    {
+	if (nodeWeight[a] != nodeWeight[b])
+	    { return nodeWeight[a] < nodeWeight[b]; }
+	return a < b;
+    }
+
+    // which of the transducers an arc moves
+    private static final byte FIRST_ALONE = 0;
+    private static final byte SECOND_ALONE = 1;
+    private static final byte BOTH = 2;
+
+    /**
+     * The transitions out of a pair of states on one symbol: which
+     * transducers each moves, the pair it leads to, what it writes, its
+     * weight and the flag it checks, if any.
+     */
+    private static class Arcs
+    {
+	int size;
+	byte[] moves = new byte[4];
+	long[] first = new long[4];
+	long[] second = new long[4];
+	int[] output = new int[4];
+	float[] weight = new float[4];
+	/** A flag symbol of the transducer that moves, or -1. */
+	int[] flag = new int[4];
+
+	void add(byte move, long firstState, long secondState, int out, float w, int flagSymbol)
+	{
+	    if (size == first.length)
+		{
+		    moves = Arrays.copyOf(moves, size*2);
+		    first = Arrays.copyOf(first, size*2);
+		    second = Arrays.copyOf(second, size*2);
+		    output = Arrays.copyOf(output, size*2);
+		    weight = Arrays.copyOf(weight, size*2);
+		    flag = Arrays.copyOf(flag, size*2);
+		}
+	    first[size] = firstState;
+	    second[size] = secondState;
+	    output[size] = out;
+	    weight[size] = w;
+	    moves[size] = move;
+	    flag[size] = flagSymbol;
+	    ++size;
+	}
+    }
+
+    /**
+     * Rows of flag values of one transducer, shared by the nodes whose
+     * paths leave them the same; row 0 is all neutral.
+     */
+    private static class FlagRows
+    {
+	private final FlagDiacriticState state;
+	private int[] rows;
+	private int count;
+
+	FlagRows(int features)
+	{
+	    state = new FlagDiacriticState(features);
+	    rows = new int[Math.max(1, features*16)];
+	}
+
+	void clear()
+	{
+	    Arrays.fill(rows, 0, state.size(), 0);
+	    count = 1;
+	}
+
+	/**
+	 * The row of values that row leaves after operation, or -1 if the
+	 * operation fails on it.
+	 */
+	int apply(int row, FlagDiacriticOperation operation)
+	{
+	    int features = state.size();
+	    state.load(rows, row*features);
+	    if (!state.apply(operation))
+		{ return -1; }
+	    if (!state.changedSince(0))
+		{ return row; }
+	    if ((count + 1)*features > rows.length)
+		{ rows = Arrays.copyOf(rows, (count + 1)*features*2); }
+	    state.store(rows, count*features);
+	    return count++;
+	}
+    }
+}
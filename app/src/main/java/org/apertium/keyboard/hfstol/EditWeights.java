@@ -0,0 +1,39 @@
+package org.apertium.keyboard.hfstol;
+
+/**
+ * What a correcting lookup may do to its input to find it in a transducer,
+ * and at what weight. An insertion is a symbol the transducer reads that the
+ * input lacks, a deletion an input symbol skipped, a substitution one symbol
+ * read in place of another, and a transposition two neighbouring input
+ * symbols read the other way round. The weight of the edits made along a
+ * path is added to the weight of the path, and paths whose edits come to
+ * more than maxCost are given up.
+ */
+public class EditWeights
+{
+    /** Each edit weighs 1, and at most two may be made. */
+    public static final EditWeights DEFAULT = new EditWeights(1.0f, 1.0f, 1.0f, 1.0f, 2.0f);
+
+    public final float insertion;
+    public final float deletion;
+    public final float substitution;
+    public final float transposition;
+    /** The most the edits of one path may weigh together. */
+    public final float maxCost;
+
+    /**
+     * The weights must be positive, so that the edits a path can make are
+     * bounded by maxCost.
+     */
+    public EditWeights(float insertion, float deletion, float substitution,
+		       float transposition, float maxCost)
+    {
+	if (!(insertion > 0 && deletion > 0 && substitution > 0 && transposition > 0))
+	    { throw new IllegalArgumentException("Edit weights must be positive"); }
+	this.insertion = insertion;
+	this.deletion = deletion;
+	this.substitution = substitution;
+	this.transposition = transposition;
+	this.maxCost = maxCost;
+    }
+}
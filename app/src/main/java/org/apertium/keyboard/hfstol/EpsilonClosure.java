@@ -0,0 +1,303 @@
+package org.apertium.keyboard.hfstol;
+
+import java.util.Arrays;
+
+/**
+ * The epsilon closure of each state of a transducer, worked out once at
+ * load time: every configuration a state leads to through epsilon and flag
+ * transitions alone, with the output and weight of each transition on the
+ * way. The weights are kept one per transition rather than summed, so that
+ * a lookup adds them to its own weight in the order a walk would and comes
+ * to the same float, rounding and all. The flag diacritics along each
+ * path are kept as the list of flag symbols, to be applied in order at
+ * lookup time, since whether they pass depends on the flag values of the
+ * lookup.
+ *
+ * A lookup that reaches a state with a closure can push every entry of the
+ * closure at once instead of walking the same epsilon transitions again at
+ * every input position. States whose closure is too big, or endless because
+ * of an epsilon cycle, are left out and walked as before, as are all the
+ * states that don't fit once the memory cap is reached.
+ *
+ * A closure never changes once computed, so it can be shared between
+ * threads.
+ */
+public class EpsilonClosure
+{
+    /** The most entries kept for one state. */
+    public static final int MAX_ENTRIES = 256;
+    /** The longest path of epsilons followed from one state. */
+    public static final int MAX_DEPTH = 32;
+
+    private static final long EMPTY = -1;
+
+    // open-addressed table from state to its run of entries
+    private long[] keys;
+    private int[] firstEntries;
+    private int[] endEntries;
+    private int stateCount;
+
+    private int entryCount;
+    private long[] entryTargets;
+    /** Where each entry's outputs and flags end; the next entry's start there. */
+    private int[] outputEnds;
+    private int[] flagEnds;
+    private char[] outputs;
+    /** The weight of the transition each output came from. */
+    private float[] weights;
+    private int outputCount;
+    private char[] flagSymbols;
+    private int flagCount;
+
+    private long bytes;
+
+    private EpsilonClosure(int states)
+    {
+	int slots = Integer.highestOneBit(Math.max(16, states*2))*2;
+	keys = new long[slots];
+	Arrays.fill(keys, EMPTY);
+	firstEntries = new int[slots];
+	endEntries = new int[slots];
+	entryTargets = new long[64];
+	outputEnds = new int[65];
+	flagEnds = new int[65];
+	outputs = new char[256];
+	weights = new float[256];
+	flagSymbols = new char[64];
+	bytes = slots*16L;
+    }
+
+    /**
+     * Works out the closures of the states of t that have epsilon or flag
+     * transitions, keeping the estimated memory used under maxBytes.
+     *
+     * @return the closures, or null if the header says t has no input
+     * epsilons or not even the table of states fits under maxBytes
+     */
+    public static EpsilonClosure compute(Transducer t, long maxBytes)
+    {
+	if (!t.header.hasInputEpsilonTransitions())
+	    { return null; }
+	IndexTable indexTable = t.indexTable;
+	TransitionTable transitionTable = t.transitionTable;
+	// every state is the start state or the target of a transition
+	long[] states = new long[transitionTable.size() + 1];
+	int count = 0;
+	states[count++] = 0;
+	for (int i = 0; i < transitionTable.size(); ++i)
+	    {
+		if (transitionTable.getInput(i) != HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    { states[count++] = transitionTable.getTarget(i); }
+	    }
+	Arrays.sort(states, 0, count);
+	int distinct = 0;
+	for (int i = 0; i < count; ++i)
+	    {
+		if (distinct == 0 || states[distinct - 1] != states[i])
+		    { states[distinct++] = states[i]; }
+	    }
+	EpsilonClosure closure = new EpsilonClosure(distinct);
+	if (closure.bytes > maxBytes)
+	    { return null; }
+	Walk walk = new Walk(t);
+	for (int i = 0; i < distinct; ++i)
+	    {
+		long state = states[i];
+		if (LookupEngine.firstEpsilon(indexTable, LookupEngine.pivot(state),
+					      state >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START) < 0)
+		    { continue; }
+		if (!closure.add(state, walk, maxBytes))
+		    { break; }
+	    }
+	return closure;
+    }
+
+    /**
+     * The number of states with a closure.
+     */
+    public int getStateCount()
+    { return stateCount; }
+
+    /**
+     * The estimated memory taken, in bytes.
+     */
+    public long getBytes()
+    { return bytes; }
+
+    /**
+     * The slot of state in the table, or -1 if it has no closure.
+     */
+    public int find(long state)
+    {
+	int mask = keys.length - 1;
+	int slot = hash(state) & mask;
+	while (keys[slot] != EMPTY)
+	    {
+		if (keys[slot] == state)
+		    { return slot; }
+		slot = (slot + 1) & mask;
+	    }
+	return -1;
+    }
+
+    /** The first entry of the closure in slot. */
+    public int getFirstEntry(int slot)
+    { return firstEntries[slot]; }
+
+    /** The entry just after the last one of the closure in slot. */
+    public int getEndEntry(int slot)
+    { return endEntries[slot]; }
+
+    public long getTarget(int entry)
+    { return entryTargets[entry]; }
+
+    public int getOutputStart(int entry)
+    { return outputEnds[entry]; }
+
+    public int getOutputEnd(int entry)
+    { return outputEnds[entry + 1]; }
+
+    public int getOutput(int pos)
+    { return outputs[pos]; }
+
+    /** The weight of the transition the output at pos came from. */
+    public float getWeight(int pos)
+    { return weights[pos]; }
+
+    public int getFlagStart(int entry)
+    { return flagEnds[entry]; }
+
+    public int getFlagEnd(int entry)
+    { return flagEnds[entry + 1]; }
+
+    public int getFlag(int pos)
+    { return flagSymbols[pos]; }
+
+    /**
+     * Walks the epsilons from state and stores the closure.
+     *
+     * @return false if the memory cap has been reached
+     */
+    private boolean add(long state, Walk walk, long maxBytes)
+    {
+	int firstEntry = entryCount;
+	int firstOutput = outputCount;
+	int firstFlag = flagCount;
+	long before = bytes;
+	if (!walk.from(state, this) || bytes > maxBytes)
+	    {
+		// too much for one state, or for the cap: forget this one
+		entryCount = firstEntry;
+		outputCount = firstOutput;
+		flagCount = firstFlag;
+		boolean full = bytes > maxBytes;
+		bytes = before;
+		return !full;
+	    }
+	int mask = keys.length - 1;
+	int slot = hash(state) & mask;
+	while (keys[slot] != EMPTY)
+	    { slot = (slot + 1) & mask; }
+	keys[slot] = state;
+	firstEntries[slot] = firstEntry;
+	endEntries[slot] = entryCount;
+	++stateCount;
+	return true;
+    }
+
+    private void addEntry(long target, int[] output, float[] weight, int outputLength,
+			  int[] flags, int flagLength)
+    {
+	if (entryCount + 1 == entryTargets.length)
+	    {
+		int size = entryTargets.length*2;
+		entryTargets = Arrays.copyOf(entryTargets, size);
+		outputEnds = Arrays.copyOf(outputEnds, size + 1);
+		flagEnds = Arrays.copyOf(flagEnds, size + 1);
+	    }
+	if (outputCount + outputLength > outputs.length)
+	    {
+		int size = Math.max(outputs.length*2, outputCount + outputLength);
+		outputs = Arrays.copyOf(outputs, size);
+		weights = Arrays.copyOf(weights, size);
+	    }
+	if (flagCount + flagLength > flagSymbols.length)
+	    { flagSymbols = Arrays.copyOf(flagSymbols, Math.max(flagSymbols.length*2, flagCount + flagLength)); }
+	for (int i = 0; i < outputLength; ++i)
+	    {
+		weights[outputCount] = weight[i];
+		outputs[outputCount++] = (char) output[i];
+	    }
+	for (int i = 0; i < flagLength; ++i)
+	    { flagSymbols[flagCount++] = (char) flags[i]; }
+	entryTargets[entryCount] = target;
+	++entryCount;
+	outputEnds[entryCount] = outputCount;
+	flagEnds[entryCount] = flagCount;
+	bytes += 20 + outputLength*6 + flagLength*2;
+    }
+
+    private static int hash(long state)
+    {
+	long h = state*0x9E3779B97F4A7C15L;
+	return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * A depth-first walk over the epsilon and flag transitions out of a
+     * state, with the path so far in arrays.
+     */
+    private static class Walk
+    {
+	private final IndexTable indexTable;
+	private final TransitionTable transitionTable;
+	private final FlagDiacriticOperation[] flags;
+	private final int[] output = new int[MAX_DEPTH];
+	private final float[] weight = new float[MAX_DEPTH];
+	private final int[] flagPath = new int[MAX_DEPTH];
+	private int entries;
+
+	Walk(Transducer t)
+	{
+	    indexTable = t.indexTable;
+	    transitionTable = t.transitionTable;
+	    flags = t.alphabet.flagOperations;
+	}
+
+	/**
+	 * @return false if the closure of state is too big to keep
+	 */
+	boolean from(long state, EpsilonClosure closure)
+	{
+	    entries = 0;
+	    return walk(state, 0, 0, closure);
+	}
+
+	private boolean walk(long state, int depth, int flagDepth, EpsilonClosure closure)
+	{
+	    int i = LookupEngine.firstEpsilon(indexTable, LookupEngine.pivot(state),
+					      state >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START);
+	    if (i < 0)
+		{ return true; }
+	    while (true)
+		{
+		    int symbol = transitionTable.getInput(i);
+		    boolean flag = symbol < flags.length && flags[symbol] != null;
+		    if (!flag && symbol != 0)
+			{ return true; }
+		    if (depth == MAX_DEPTH || ++entries > MAX_ENTRIES)
+			{ return false; }
+		    output[depth] = transitionTable.getOutput(i);
+		    weight[depth] = transitionTable.getWeight(i);
+		    int flagLength = flagDepth;
+		    if (flag)
+			{ flagPath[flagLength++] = symbol; }
+		    long target = transitionTable.getTarget(i);
+		    closure.addEntry(target, output, weight, depth + 1, flagPath, flagLength);
+		    if (!walk(target, depth + 1, flagLength, closure))
+			{ return false; }
+		    ++i;
+		}
+	}
+    }
+}
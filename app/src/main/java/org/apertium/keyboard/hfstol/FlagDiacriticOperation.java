@@ -6,10 +6,10 @@ package org.apertium.keyboard.hfstol;
 public class FlagDiacriticOperation
 {
     public HfstOptimizedLookup.FlagDiacriticOperator op;
-    public Integer feature;
-    public Integer value;
+    public int feature;
+    public int value;
     public FlagDiacriticOperation(HfstOptimizedLookup.FlagDiacriticOperator operation,
-				  Integer feat, Integer val)
+				  int feat, int val)
     {
 	op = operation;
 	feature = feat;
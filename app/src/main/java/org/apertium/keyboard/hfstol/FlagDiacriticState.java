@@ -0,0 +1,131 @@
+package org.apertium.keyboard.hfstol;
+
+import java.util.Arrays;
+
+/**
+ * The values of all flag diacritic features along the path being explored.
+ * There is a single vector of values; every change made to it is written to
+ * a log so that it can be undone when the search backs up, instead of
+ * copying the whole vector for each flag transition. Flags that only test
+ * the state change nothing and log nothing.
+ */
+public class FlagDiacriticState
+{
+    private int[] values;
+    private int[] loggedFeatures;
+    private int[] loggedValues;
+    private int logSize;
+
+    public FlagDiacriticState(int features)
+    {
+	values = new int[features];
+	loggedFeatures = new int[16];
+	loggedValues = new int[16];
+    }
+
+    /** Sets every feature back to the neutral value and empties the log. */
+    public void reset()
+    {
+	Arrays.fill(values, 0);
+	logSize = 0;
+    }
+
+    /**
+     * A position in the log to undo back to.
+     */
+    public int mark()
+    { return logSize; }
+
+    /**
+     * Undoes the changes made since mark was taken.
+     */
+    public void undo(int mark)
+    {
+	while (logSize > mark)
+	    {
+		--logSize;
+		values[loggedFeatures[logSize]] = loggedValues[logSize];
+	    }
+    }
+
+    public int getValue(int feature)
+    { return values[feature]; }
+
+    /**
+     * Whether any value has changed since mark was taken.
+     */
+    public boolean changedSince(int mark)
+    { return logSize != mark; }
+
+    /**
+     * Replaces every value with the ones stored in rows from offset on, and
+     * empties the log.
+     */
+    public void load(int[] rows, int offset)
+    {
+	System.arraycopy(rows, offset, values, 0, values.length);
+	logSize = 0;
+    }
+
+    /**
+     * Copies the values into rows from offset on.
+     */
+    public void store(int[] rows, int offset)
+    { System.arraycopy(values, 0, rows, offset, values.length); }
+
+    /** The number of features, and so the length of a stored row. */
+    public int size()
+    { return values.length; }
+
+    /**
+     * Applies flag if the current values allow it.
+     *
+     * @return whether the flag could be applied
+     */
+    public boolean apply(FlagDiacriticOperation flag)
+    {
+	int value = values[flag.feature];
+	switch (flag.op) {
+	case P: // positive set
+	    set(flag.feature, flag.value);
+	    return true;
+	case N: // negative set
+	    set(flag.feature, -1*flag.value);
+	    return true;
+	case R: // require
+	    if (flag.value == 0) // empty require
+		{ return value != 0; }
+	    return value == flag.value;
+	case D: // disallow
+	    if (flag.value == 0) // empty disallow
+		{ return value == 0; }
+	    return value != flag.value;
+	case C: // clear
+	    set(flag.feature, 0);
+	    return true;
+	case U: // unification
+	    if (value == 0 || value == flag.value || value < 0)
+		{
+		    set(flag.feature, flag.value);
+		    return true;
+		}
+	    return false;
+	}
+	return false; // compiler sanity
+    }
+
+    private void set(int feature, int value)
+    {
+	if (values[feature] == value)
+	    { return; }
+	if (logSize == loggedFeatures.length)
+	    {
+		loggedFeatures = Arrays.copyOf(loggedFeatures, logSize*2);
+		loggedValues = Arrays.copyOf(loggedValues, logSize*2);
+	    }
+	loggedFeatures[logSize] = feature;
+	loggedValues[logSize] = values[feature];
+	++logSize;
+	values[feature] = value;
+    }
+}
@@ -1,6 +1,8 @@
 package org.apertium.keyboard.hfstol;
 
 public class FormatException extends Exception {
+    private static final long serialVersionUID = 1L;
+
     //    public FormatException(String str)
     //	{
     //	    super();
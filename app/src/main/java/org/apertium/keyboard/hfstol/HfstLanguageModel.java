@@ -16,16 +16,22 @@ limitations under the License.
 package org.apertium.keyboard.hfstol;
 
 import android.app.Service;
+import android.content.Context;
+import android.content.pm.PackageManager;
 import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.MappedByteBuffer;
-import java.io.DataInputStream;
 import java.nio.channels.FileChannel;
 import java.util.*;
 
+import org.apertium.keyboard.R;
 import org.apertium.keyboard.hfstol.WeightedTransducer;
 
 import android.util.Log;
@@ -41,6 +47,26 @@ public class HfstLanguageModel {
 
   private WeightedTransducer t;
 
+  /** Follows the word being typed from one call of generate to the next. */
+  private LookupSession session;
+
+  /** The characters that end a word, as the keyboard splits words. */
+  private final String wordSeparators;
+
+  /** Limits the lookup work done for each keystroke to 20 ms. */
+  private static final LookupBudget KEYSTROKE_BUDGET = new LookupBudget(20000000L, 0, 0);
+
+  /** Memory budget of the result cache, in bytes. */
+  public static final long DEFAULT_CACHE_BUDGET = 1 << 20;
+  /** Rough size of a cached result, for sizing the cache's frequency sketch. */
+  private static final int CACHE_ENTRY_ESTIMATE = 512;
+
+  /** Most memory to spend on epsilon closures, in bytes. */
+  private static final long CLOSURE_BUDGET = 1 << 20;
+
+  /** Results of earlier calls to generate, by the word typed. */
+  private AnalysisCache<HashMap<String, Float>> cache;
+
   /** An instance of the driver class to run model inference with Tensorflow Lite. */
 //  protected Interpreter hfstol;
 
@@ -65,31 +91,108 @@ public class HfstLanguageModel {
 
   }
 */
-  public HfstLanguageModel() {
-	FileInputStream transducerfile = null;
-        try {
-	transducerfile = new FileInputStream(getModelPath()); 
-	} catch (java.io.FileNotFoundException e) {
-        }
-        TransducerHeader h = null;
-        try {
-        h = new TransducerHeader(transducerfile);
-        } catch (IOException e) {
-        } catch (FormatException e) {
-        }
-	DataInputStream charstream = new DataInputStream(transducerfile);
-	//System.out.println("Reading alphabet...");
-        try {
-	TransducerAlphabet a = new TransducerAlphabet(charstream, h.getSymbolCount());
-    	//System.out.println("Reading transition and index tables...");
-            try {
-    	t = new WeightedTransducer(transducerfile, h, a);
-            } catch (IOException e) {
-            }
-        } catch(IOException e) { 
-        }
+  public HfstLanguageModel(Context context) throws IOException, FormatException {
+    this(context, DEFAULT_CACHE_BUDGET);
+  }
+
+  /**
+   * @param cacheBudget roughly how many bytes to spend on caching results;
+   * 0 turns the cache off
+   */
+  public HfstLanguageModel(Context context, long cacheBudget) throws IOException, FormatException {
+    cache = new AnalysisCache<>(cacheBudget, (int) (cacheBudget / CACHE_ENTRY_ESTIMATE));
+    wordSeparators = context.getString(R.string.word_separators);
+    Transducer transducer = loadModel(context, getModelPath());
+    if (!(transducer instanceof WeightedTransducer)) {
+      throw new FormatException();
+    }
+    t = (WeightedTransducer) transducer;
+    t.precomputeEpsilonClosure(CLOSURE_BUDGET);
+    session = new LookupSession(t);
+    session.setBudget(KEYSTROKE_BUDGET);
+  }
+
+  /**
+   * Loads the model from its snapshot in the code cache if there is one
+   * made from this install of the app, and otherwise from the asset,
+   * leaving a snapshot behind for next time. An asset has no modification
+   * time of its own, so the snapshot is keyed on the asset's length and the
+   * time the app was installed or last updated.
+   */
+  private static Transducer loadModel(Context context, String path)
+      throws IOException, FormatException {
+    AssetManager assets = context.getAssets();
+    long installed;
+    try {
+      installed = context.getPackageManager()
+          .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+    } catch (PackageManager.NameNotFoundException e) {
+      // can't happen for our own package; just don't use a snapshot
+      return loadAsset(assets, path);
+    }
+    File snapshot = new File(context.getCodeCacheDir(), path + ".snapshot");
+    long length = assetLength(assets, path);
+    Transducer t = TransducerSnapshot.read(snapshot, length, installed);
+    if (t != null) {
+      return t;
+    }
+    t = loadAsset(assets, path);
+    try {
+      TransducerSnapshot.write(t, snapshot, length, installed);
+    } catch (IOException e) {
+      // the snapshot only saves time on the next start
+      Log.w("HfstLanguageModel", "Couldn't write a snapshot of " + path, e);
+      snapshot.delete();
+    }
+    return t;
+  }
+
+  /** The uncompressed length of an asset. */
+  private static long assetLength(AssetManager assets, String path) throws IOException {
+    try {
+      AssetFileDescriptor fileDescriptor = assets.openFd(path);
+      try {
+        return fileDescriptor.getLength();
+      } finally {
+        fileDescriptor.close();
+      }
+    } catch (FileNotFoundException e) {
+      // a compressed asset, whose stream knows its whole length
+      InputStream in = assets.open(path, AssetManager.ACCESS_STREAMING);
+      try {
+        return in.available();
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Maps the model straight out of the APK if it is stored uncompressed
+   * there, and otherwise reads it from the asset stream in bulk.
+   */
+  private static Transducer loadAsset(AssetManager assets, String path)
+      throws IOException, FormatException {
+    AssetFileDescriptor fileDescriptor;
+    try {
+      fileDescriptor = assets.openFd(path);
+    } catch (FileNotFoundException e) {
+      // openFd only works for uncompressed assets
+      InputStream in = assets.open(path, AssetManager.ACCESS_STREAMING);
+      try {
+        return TransducerLoader.read(in);
+      } finally {
+        in.close();
+      }
+    }
+    try {
+      return TransducerLoader.map(fileDescriptor.getFileDescriptor(),
+          fileDescriptor.getStartOffset(), fileDescriptor.getDeclaredLength());
+    } finally {
+      // the mapping outlives the descriptor
+      fileDescriptor.close();
+    }
   }
-  
 
   /** Memory-map the model file in Assets. */
 /*  private MappedByteBuffer loadModelFile(Service activity) throws IOException {
@@ -102,20 +205,73 @@ public class HfstLanguageModel {
   }
 */
 
-  /** Generates up to the next word or morpheme boundary. */
-  public HashMap<String, Float> generate(final String history) {
+  /**
+   * Generates candidates for the word being typed, which is the part of
+   * history after its last word separator. Each candidate is mapped to
+   * exp(-weight) of its lightest analysis, so that, as with the Tensorflow
+   * Lite model, a higher value means a better candidate.
+   *
+   * Successive calls are expected to differ by a few keystrokes of the
+   * same word, and only the part of the word that changed is looked up
+   * again; a separator starts the next word afresh. Results for words that
+   * come up often are cached, whatever text comes before them.
+   */
+  public synchronized HashMap<String, Float> generate(final String history) {
+    String word = currentWord(history);
+    HashMap<String, Float> cached = cache.get(word);
+    if (cached != null) {
+      return new HashMap<>(cached);
+    }
     HashMap<String, Float> results = new HashMap<>();
-    try {
-      Collection<String> analyses = t.analyze(history);
-      for (String analysis : analyses) {
-        results.put(analysis, 0.0f);
+    if (word.isEmpty()) {
+      session.reset();
+    } else {
+      session.setText(word);
+    }
+    int count = session.analyze(MAX_PRED);
+    AnalysisResults analyses = session.getResults();
+    for (int i = 0; i < count; i++) {
+      String candidate = analyses.getOutput(i);
+      if (!results.containsKey(candidate)) {
+        // analyses come lightest first
+        results.put(candidate, (float) Math.exp(-analyses.getWeight(i)));
       }
-    } catch( NoTokenizationException e)
-    { }
+    }
 
+    int bytes = 2 * word.length() + 48;
+    for (String candidate : results.keySet()) {
+      bytes += 2 * candidate.length() + 96;
+    }
+    if (!analyses.isTruncated()) {
+      cache.put(word, new HashMap<>(results), bytes);
+    }
     return results;
   }
 
+  /** The text of history after its last word separator. */
+  private String currentWord(String history) {
+    int start = history.length();
+    while (start > 0 && wordSeparators.indexOf(history.charAt(start - 1)) < 0) {
+      start--;
+    }
+    return history.substring(start);
+  }
+
+  /** The result cache, for its hit, miss and eviction counts. */
+  public AnalysisCache<HashMap<String, Float>> getCache() {
+    return cache;
+  }
+
+  /** Empties the result cache, which refills as words are typed. */
+  public void trimCache() {
+    cache.clear();
+  }
+
+  /** An estimate of the heap taken by the transducer and the result cache. */
+  public long getMemoryBytes() {
+    return (t != null ? t.getHeapBytes() : 0) + cache.getUsedBytes();
+  }
+
 
 
   /** Closes the interpreter and model to release resources. */
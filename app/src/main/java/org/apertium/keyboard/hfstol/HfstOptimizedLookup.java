@@ -1,11 +1,14 @@
 package org.apertium.keyboard.hfstol;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.DataInputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apertium.keyboard.hfstol.Transducer;
 import org.apertium.keyboard.hfstol.UnweightedTransducer;
@@ -35,6 +38,9 @@ public class HfstOptimizedLookup {
 
     public static enum FlagDiacriticOperator {P, N, R, D, C, U};
 
+    /** Lines read from standard input per batch with --threads. */
+    private static final int BATCH_LINES = 65536;
+
     public static void runTransducer(Transducer t) {
 		System.out.println("Ready for input.");
 		BufferedReader stdin = new BufferedReader(new InputStreamReader(
@@ -46,57 +52,218 @@ public class HfstOptimizedLookup {
 			} catch (IOException e) {
 				break;
 			}
+			if (str == null) {
+				break;
+			}
 			try {
-				Collection<String> analyses = t.analyze(str);
-				for (String analysis : analyses) {
-					System.out.println(str + "\t" + analysis);
-				}
-				if (analyses.isEmpty()) {
-					System.out.println(str + "\t+?");
-				}
+				printAnalyses(str, t.analyze(str));
 			} catch (NoTokenizationException e) {
 				// System.out.println(e.message());
-				System.out.println(str + "\t+?");
+				printAnalyses(str, null);
 			}
-			System.out.println();
 		}
 	}
-    
-    
+
+    /**
+     * Reads standard input in batches of lines and analyzes each batch on
+     * threads threads, printing the same output as runTransducer. The
+     * number of words analyzed per second is reported on standard error.
+     */
+    public static void runBatches(Transducer t, int threads) throws IOException
+    {
+	System.out.println("Ready for input.");
+	BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	ArrayList<String> batch = new ArrayList<String>(BATCH_LINES);
+	long words = 0;
+	long time = 0;
+	try
+	    {
+		String str = stdin.readLine();
+		while (str != null)
+		    {
+			batch.add(str);
+			str = stdin.readLine();
+			if (batch.size() < BATCH_LINES && str != null)
+			    { continue; }
+			long start = System.nanoTime();
+			List<Collection<String>> analyses = t.analyzeAll(batch, pool);
+			time += System.nanoTime() - start;
+			words += batch.size();
+			for (int i = 0; i < batch.size(); ++i)
+			    { printAnalyses(batch.get(i), analyses.get(i)); }
+			batch.clear();
+		    }
+	    }
+	finally
+	    { pool.shutdown(); }
+	System.out.flush();
+	System.err.println("Analyzed " + words + " words in " + (time / 1000000)
+			   + " ms on " + threads + " threads ("
+			   + (time == 0 ? 0 : words * 1000000000L / time) + " words/s)");
+    }
+
+    /**
+     * Prints the analyses of str, or +? when analyses is null or empty.
+     */
+    private static void printAnalyses(String str, Collection<String> analyses)
+    {
+	if (analyses == null || analyses.isEmpty())
+	    {
+		System.out.println(str + "\t+?");
+	    } else
+	    {
+		for (String analysis : analyses)
+		    {
+			System.out.println(str + "\t" + analysis);
+		    }
+	    }
+	System.out.println();
+    }
+
     public static void main(String[] argv) throws IOException
     {
-	if (argv.length != 1)
+	String snapshot = null;
+	boolean mapped = false;
+	int threads = 0;
+	long closureBytes = 0;
+	int arg = 0;
+	for (; arg < argv.length - 1 && argv[arg].startsWith("--"); ++arg)
 	    {
-		System.err.println("Usage: java HfstRuntimeReader FILE");
-		System.exit(1);
+		if (argv[arg].equals("--mmap"))
+		    { mapped = true; }
+		else if (argv[arg].equals("--snapshot") && arg < argv.length - 2)
+		    { snapshot = argv[++arg]; }
+		else if (argv[arg].equals("--threads") && arg < argv.length - 2)
+		    {
+			try
+			    { threads = Integer.parseInt(argv[++arg]); }
+			catch (NumberFormatException e)
+			    { threads = -1; }
+			if (threads < 1)
+			    { usage(); }
+		    }
+		else if (argv[arg].equals("--closure") && arg < argv.length - 2)
+		    {
+			try
+			    { closureBytes = Long.parseLong(argv[++arg]); }
+			catch (NumberFormatException e)
+			    { closureBytes = -1; }
+			if (closureBytes < 1)
+			    { usage(); }
+		    }
+		else
+		    { usage(); }
 	    }
+	if (arg != argv.length - 1)
+	    { usage(); }
+	String filename = argv[arg];
+	Transducer transducer;
+	if (mapped || snapshot != null)
+	    { transducer = loadMapped(filename, snapshot); }
+	else if (threads > 0)
+	    { transducer = loadParallel(filename, threads); }
+	else
+	    { transducer = load(filename); }
+	if (closureBytes > 0)
+	    {
+		System.out.println("Computing epsilon closures...");
+		transducer.precomputeEpsilonClosure(closureBytes);
+	    }
+	if (threads > 0)
+	    { runBatches(transducer, threads); }
+	else
+	    { runTransducer(transducer); }
+    }
+
+    private static void usage()
+    {
+	System.err.println("Usage: java HfstRuntimeReader [--mmap | --snapshot CACHE] [--threads N] [--closure BYTES] FILE");
+	System.exit(1);
+    }
+
+    private static Transducer load(String filename) throws IOException
+    {
 	FileInputStream transducerfile = null;
 	try
-	    { transducerfile = new FileInputStream(argv[0]); }
+	    { transducerfile = new FileInputStream(filename); }
 	catch (java.io.FileNotFoundException e)
 	    {
-		System.err.println("File not found: couldn't read transducer file " + argv[0] + ".");
+		System.err.println("File not found: couldn't read transducer file " + filename + ".");
 		System.exit(1);
 	    }
-	System.out.println("Reading header...");
-        TransducerHeader h = null;
-        try { h = new TransducerHeader(transducerfile); }
-        catch (FormatException e) {
-            System.err.println("File must be in hfst optimized-lookup format");
-            System.exit(1);
-        }
-	DataInputStream charstream = new DataInputStream(transducerfile);
-	System.out.println("Reading alphabet...");
-	TransducerAlphabet a = new TransducerAlphabet(charstream, h.getSymbolCount());
-	System.out.println("Reading transition and index tables...");
-	if (h.isWeighted())
+	System.out.println("Reading transducer...");
+	Transducer transducer = null;
+	try {
+	    transducer = TransducerLoader.read(transducerfile.getChannel());
+	}
+	catch (FormatException e) {
+	    System.err.println("File must be in hfst optimized-lookup format");
+	    System.exit(1);
+	}
+	finally {
+	    transducerfile.close();
+	}
+	return transducer;
+    }
+
+    /**
+     * Reads the transducer file and decodes its tables on threads threads.
+     */
+    private static Transducer loadParallel(String filename, int threads) throws IOException
+    {
+	FileInputStream transducerfile = null;
+	try
+	    { transducerfile = new FileInputStream(filename); }
+	catch (java.io.FileNotFoundException e)
 	    {
-		Transducer transducer = new WeightedTransducer(transducerfile, h, a);
-		runTransducer(transducer);
-	    } else
+		System.err.println("File not found: couldn't read transducer file " + filename + ".");
+		System.exit(1);
+	    }
+	System.out.println("Reading transducer...");
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	Transducer transducer = null;
+	try {
+	    transducer = TransducerLoader.read(transducerfile, pool);
+	}
+	catch (FormatException e) {
+	    System.err.println("File must be in hfst optimized-lookup format");
+	    System.exit(1);
+	}
+	finally {
+	    pool.shutdown();
+	    transducerfile.close();
+	}
+	return transducer;
+    }
+
+    /**
+     * Maps the transducer file into memory rather than reading its tables
+     * into the heap, going through a snapshot file if one is given. Compact
+     * transducer files are always mapped as they are.
+     */
+    private static Transducer loadMapped(String filename, String snapshot) throws IOException
+    {
+	File file = new File(filename);
+	if (!file.exists())
 	    {
-		Transducer transducer = new UnweightedTransducer(transducerfile, h, a);
-		runTransducer(transducer);
+		System.err.println("File not found: couldn't read transducer file " + filename + ".");
+		System.exit(1);
 	    }
+	System.out.println("Mapping transducer...");
+	Transducer transducer = null;
+	try {
+	    if (CompactTransducer.isCompact(file))
+		{ transducer = CompactTransducer.map(file); }
+	    else if (snapshot == null)
+		{ transducer = TransducerLoader.map(file); }
+	    else
+		{ transducer = TransducerSnapshot.load(file, new File(snapshot)); }
+	}
+	catch (FormatException e) {
+	    System.err.println("File must be in hfst optimized-lookup format");
+	    System.exit(1);
+	}
+	return transducer;
     }
 }
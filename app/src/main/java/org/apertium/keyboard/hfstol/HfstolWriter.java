@@ -0,0 +1,421 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Writes a WeightedAutomaton in the optimized-lookup format, with an hfst3
+ * header in front, as hfst-fst2fst would.
+ *
+ * Symbols are renumbered so that epsilon is 0 and the symbols read by some
+ * arc come before those only ever written. Every state has a block in the
+ * transition table: a finality entry followed by its arcs, epsilons and
+ * flag diacritics first and then by input symbol. States whose arcs don't
+ * all read the same symbol, and the start state, also get a block of index
+ * entries, which are packed into the index table by first fit: each
+ * entry names its input symbol, so the blocks of different states can
+ * interleave as long as no two states share a starting position and no
+ * entry lands where another state looks for its finality.
+ */
+public class HfstolWriter
+{
+    public static final String EPSILON_SYMBOL = "@_EPSILON_SYMBOL_@";
+
+    // how many starting positions to try for a state's index block before
+    // putting it after everything placed so far
+    private static final int PLACEMENT_TRIES = 64;
+
+    private final WeightedAutomaton a;
+    private final boolean weighted;
+    private final int stateCount;
+
+    private int[] numbers;        // new symbol number of each symbol
+    private boolean[] isFlag;     // by new symbol number
+    private int inputSymbolCount;
+    private int[] firstArc;       // into order, by state
+    private long[] order;         // key << 32 | arc, by state and then key
+    private long[] transitionPosition;
+    private int[] base;           // index position of each state, or -1
+    private int transitionCount;  // entries, with the closing sentinel
+
+    private char[] indexInputs = new char[0];
+    private int[] indexTargets = new int[0];
+    private int indexSize;
+    private final BitSet used = new BitSet();
+    private final BitSet noFinal = new BitSet();
+    private final BitSet bases = new BitSet();
+
+    private HfstolWriter(WeightedAutomaton a, boolean weighted)
+    {
+	this.a = a;
+	this.weighted = weighted;
+	stateCount = a.getStateCount();
+    }
+
+    public static void write(WeightedAutomaton a, File file, String name, boolean weighted) throws IOException
+    {
+	OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+	try {
+	    write(a, out, name, weighted);
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Writes a to out, as a transducer called name. If weighted is false,
+     * the weights of a are left out.
+     */
+    public static void write(WeightedAutomaton a, OutputStream out, String name, boolean weighted) throws IOException
+    {
+	HfstolWriter writer = new HfstolWriter(a, weighted);
+	writer.numberSymbols();
+	writer.sortArcs();
+	writer.layOut();
+	writer.writeTo(out, name);
+    }
+
+    private void numberSymbols()
+    {
+	List<String> symbols = a.getSymbols();
+	boolean[] read = new boolean[symbols.size()];
+	for (int arc = 0; arc < a.getArcCount(); ++arc)
+	    { read[a.getInput(arc)] = true; }
+	for (String symbol : a.getDeclaredInputs())
+	    { read[symbols.indexOf(symbol)] = true; }
+	read[0] = true;
+	numbers = new int[symbols.size()];
+	isFlag = new boolean[symbols.size()];
+	int next = 0;
+	for (int pass = 0; pass < 2; ++pass)
+	    {
+		for (int s = 0; s < symbols.size(); ++s)
+		    {
+			if (read[s] == (pass == 0))
+			    {
+				numbers[s] = next;
+				isFlag[next] = TransducerAlphabet.isFlagDiacritic(symbols.get(s));
+				++next;
+			    }
+		    }
+		if (pass == 0)
+		    { inputSymbolCount = next; }
+	    }
+    }
+
+    /** The symbol under which an arc is found: 0 for epsilons and flags. */
+    private int key(int arc)
+    {
+	int input = numbers[a.getInput(arc)];
+	return isFlag[input] ? 0 : input;
+    }
+
+    private void sortArcs()
+    {
+	firstArc = new int[stateCount + 1];
+	for (int arc = 0; arc < a.getArcCount(); ++arc)
+	    { ++firstArc[a.getSource(arc) + 1]; }
+	for (int s = 0; s < stateCount; ++s)
+	    { firstArc[s + 1] += firstArc[s]; }
+	int[] fill = Arrays.copyOf(firstArc, stateCount);
+	order = new long[a.getArcCount()];
+	for (int arc = 0; arc < a.getArcCount(); ++arc)
+	    { order[fill[a.getSource(arc)]++] = (long) key(arc) << 32 | arc; }
+	for (int s = 0; s < stateCount; ++s)
+	    { Arrays.sort(order, firstArc[s], firstArc[s + 1]); }
+    }
+
+    private static int keyOf(long entry)
+    { return (int) (entry >>> 32); }
+
+    private static int arcOf(long entry)
+    { return (int) entry; }
+
+    /**
+     * Works out where each state's transitions go, and places the index
+     * blocks.
+     */
+    private void layOut() throws IOException
+    {
+	transitionPosition = new long[stateCount];
+	long position = 0;
+	for (int s = 0; s < stateCount; ++s)
+	    {
+		transitionPosition[s] = position;
+		position += 1 + firstArc[s + 1] - firstArc[s];
+	    }
+	if (position + 1 > Integer.MAX_VALUE)
+	    { throw new IOException("Too many transitions for the optimized-lookup format"); }
+	transitionCount = (int) position + 1;
+	base = new int[stateCount];
+	Arrays.fill(base, -1);
+	for (int s = 0; s < stateCount; ++s)
+	    {
+		if (s == 0 || !isSimple(s))
+		    { place(s); }
+	    }
+	int lastBase = bases.length() - 1;
+	growIndex(lastBase + 1 + inputSymbolCount);
+	indexSize = Math.max(indexSize, lastBase + 1 + inputSymbolCount);
+    }
+
+    /** Whether every arc of s is found under the same symbol. */
+    private boolean isSimple(int s)
+    {
+	return firstArc[s] == firstArc[s + 1] ||
+	    keyOf(order[firstArc[s]]) == keyOf(order[firstArc[s + 1] - 1]);
+    }
+
+    private void place(int s) throws IOException
+    {
+	int first = firstArc[s];
+	int end = firstArc[s + 1];
+	int lowest = first < end ? keyOf(order[first]) : 0;
+	int b = s == 0 ? 0 : Math.max(0, used.nextClearBit(0) - 1 - lowest);
+	for (int tries = 0; s != 0 && !fits(s, b); ++tries)
+	    {
+		if (tries == PLACEMENT_TRIES)
+		    {
+			b = Math.max(used.length(), bases.length());
+			break;
+		    }
+		b = Math.max(b + 1, used.nextClearBit(b + 1 + lowest) - 1 - lowest);
+	    }
+	if ((long) b + 1 + inputSymbolCount >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START)
+	    { throw new IOException("Too many states for the optimized-lookup format"); }
+	base[s] = b;
+	bases.set(b);
+	int highest = first < end ? keyOf(order[end - 1]) : 0;
+	growIndex(b + 2 + highest);
+	if (a.isFinal(s))
+	    {
+		used.set(b);
+		indexInputs[b] = (char) HfstOptimizedLookup.NO_SYMBOL_NUMBER;
+		indexTargets[b] = weighted ? Float.floatToRawIntBits(a.getFinalWeight(s)) : 1;
+	    }
+	else
+	    { noFinal.set(b); }
+	for (int i = first; i < end; ++i)
+	    {
+		int key = keyOf(order[i]);
+		if (i > first && key == keyOf(order[i - 1]))
+		    { continue; }
+		int slot = b + 1 + key;
+		used.set(slot);
+		indexInputs[slot] = (char) key;
+		indexTargets[slot] = (int) (HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START +
+					    transitionPosition[s] + 1 + i - first);
+	    }
+	indexSize = Math.max(indexSize, b + 2 + highest);
+    }
+
+    private boolean fits(int s, int b)
+    {
+	if (bases.get(b))
+	    { return false; }
+	if (a.isFinal(s) ? used.get(b) || noFinal.get(b) : isFinalEntry(b))
+	    { return false; }
+	for (int i = firstArc[s]; i < firstArc[s + 1]; ++i)
+	    {
+		if (used.get(b + 1 + keyOf(order[i])))
+		    { return false; }
+	    }
+	return true;
+    }
+
+    private boolean isFinalEntry(int slot)
+    {
+	return used.get(slot) && slot < indexSize &&
+	    indexInputs[slot] == (char) HfstOptimizedLookup.NO_SYMBOL_NUMBER;
+    }
+
+    private void growIndex(int size)
+    {
+	if (size <= indexInputs.length)
+	    { return; }
+	int old = indexInputs.length;
+	int grown = Math.max(Math.max(size, 1024), old + (old >> 1));
+	indexInputs = Arrays.copyOf(indexInputs, grown);
+	indexTargets = Arrays.copyOf(indexTargets, grown);
+	Arrays.fill(indexInputs, old, grown, (char) HfstOptimizedLookup.NO_SYMBOL_NUMBER);
+	Arrays.fill(indexTargets, old, grown, (int) HfstOptimizedLookup.NO_TABLE_INDEX);
+    }
+
+    private long target(int state)
+    {
+	if (base[state] >= 0)
+	    { return base[state]; }
+	return HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START + transitionPosition[state];
+    }
+
+    /**
+     * Whether some state can reach itself by epsilons and flags alone,
+     * found by a depth-first search over just those arcs.
+     */
+    private boolean hasInputEpsilonCycles()
+    {
+	byte[] colour = new byte[stateCount]; // 0 unseen, 1 on the stack, 2 done
+	int[] stack = new int[stateCount];
+	int[] cursor = new int[stateCount];
+	for (int root = 0; root < stateCount; ++root)
+	    {
+		if (colour[root] != 0)
+		    { continue; }
+		int top = 0;
+		stack[0] = root;
+		cursor[0] = firstArc[root];
+		colour[root] = 1;
+		while (top >= 0)
+		    {
+			int s = stack[top];
+			int i = cursor[top]++;
+			if (i >= firstArc[s + 1] || keyOf(order[i]) != 0)
+			    {
+				colour[s] = 2;
+				--top;
+				continue;
+			    }
+			int t = a.getTarget(arcOf(order[i]));
+			if (colour[t] == 1)
+			    { return true; }
+			if (colour[t] == 0)
+			    {
+				colour[t] = 1;
+				stack[++top] = t;
+				cursor[top] = firstArc[t];
+			    }
+		    }
+	    }
+	return false;
+    }
+
+    private void writeTo(OutputStream stream, String name) throws IOException
+    {
+	Output out = new Output(stream);
+	boolean epsilonEpsilon = false;
+	boolean inputEpsilon = false;
+	for (int arc = 0; arc < a.getArcCount(); ++arc)
+	    {
+		if (key(arc) == 0)
+		    {
+			inputEpsilon = true;
+			epsilonEpsilon |= numbers[a.getOutput(arc)] == 0 && a.getInput(arc) == 0;
+		    }
+	    }
+	boolean epsilonCycles = inputEpsilon && hasInputEpsilonCycles();
+
+	byte[] properties = ("version\0" + "3.3\0" + "type\0" + (weighted ? "HFST_OLW" : "HFST_OL") +
+			     "\0name\0" + (name == null ? "" : name) + "\0").getBytes("UTF-8");
+	out.reserve(8);
+	out.buffer.put(new byte[] {'H', 'F', 'S', 'T', 0});
+	out.buffer.putShort((short) properties.length);
+	out.buffer.put((byte) 0);
+	out.put(properties);
+
+	List<String> symbols = a.getSymbols();
+	out.reserve(56);
+	out.buffer.putShort((short) inputSymbolCount);
+	out.buffer.putShort((short) symbols.size());
+	out.buffer.putInt(indexSize);
+	out.buffer.putInt(transitionCount);
+	out.buffer.putInt(stateCount);
+	out.buffer.putInt(a.getArcCount());
+	boolean[] flags = {weighted, false, false, false, true, epsilonEpsilon,
+			   inputEpsilon, epsilonCycles, epsilonCycles};
+	for (boolean flag : flags)
+	    { out.buffer.putInt(flag ? 1 : 0); }
+
+	String[] renumbered = new String[symbols.size()];
+	for (int s = 0; s < symbols.size(); ++s)
+	    { renumbered[numbers[s]] = symbols.get(s); }
+	renumbered[0] = EPSILON_SYMBOL;
+	for (String symbol : renumbered)
+	    {
+		out.put(symbol.getBytes("UTF-8"));
+		out.reserve(1);
+		out.buffer.put((byte) 0);
+	    }
+
+	for (int i = 0; i < indexSize; ++i)
+	    {
+		out.reserve(6);
+		out.buffer.putShort((short) indexInputs[i]);
+		out.buffer.putInt(indexTargets[i]);
+	    }
+
+	for (int s = 0; s < stateCount; ++s)
+	    {
+		boolean isFinal = a.isFinal(s);
+		putTransition(out, HfstOptimizedLookup.NO_SYMBOL_NUMBER,
+			      HfstOptimizedLookup.NO_SYMBOL_NUMBER,
+			      isFinal ? 1 : HfstOptimizedLookup.NO_TABLE_INDEX,
+			      isFinal ? a.getFinalWeight(s) : 0.0f);
+		for (int i = firstArc[s]; i < firstArc[s + 1]; ++i)
+		    {
+			int arc = arcOf(order[i]);
+			putTransition(out, numbers[a.getInput(arc)], numbers[a.getOutput(arc)],
+				      target(a.getTarget(arc)), a.getWeight(arc));
+		    }
+	    }
+	putTransition(out, HfstOptimizedLookup.NO_SYMBOL_NUMBER, HfstOptimizedLookup.NO_SYMBOL_NUMBER,
+		      HfstOptimizedLookup.NO_TABLE_INDEX, 0.0f);
+	out.flush();
+    }
+
+    private void putTransition(Output out, int input, int output, long target, float weight) throws IOException
+    {
+	out.reserve(12);
+	out.buffer.putShort((short) input);
+	out.buffer.putShort((short) output);
+	out.buffer.putInt((int) target);
+	if (weighted)
+	    { out.buffer.putFloat(weight); }
+    }
+
+    /**
+     * A little-endian buffer in front of an OutputStream.
+     */
+    private static class Output
+    {
+	final OutputStream stream;
+	final ByteBuffer buffer;
+
+	Output(OutputStream s)
+	{
+	    stream = s;
+	    buffer = ByteBuffer.allocate(1 << 16);
+	    buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	void reserve(int n) throws IOException
+	{
+	    if (buffer.remaining() < n)
+		{ flush(); }
+	}
+
+	void put(byte[] bytes) throws IOException
+	{
+	    for (int i = 0; i < bytes.length; )
+		{
+		    reserve(1);
+		    int n = Math.min(bytes.length - i, buffer.remaining());
+		    buffer.put(bytes, i, n);
+		    i += n;
+		}
+	}
+
+	void flush() throws IOException
+	{
+	    stream.write(buffer.array(), 0, buffer.position());
+	    buffer.clear();
+	}
+    }
+}
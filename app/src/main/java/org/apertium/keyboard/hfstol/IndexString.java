@@ -1,14 +0,0 @@
-package org.apertium.keyboard.hfstol;
-
-// There has to be a better way...
-public class IndexString
-{
-    public String str;
-    public int index;
-    public IndexString(String s)
-    {
-	str = s;
-	index = 0;
-    }
-}
-
@@ -0,0 +1,53 @@
+package org.apertium.keyboard.hfstol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A transducer's index table. Each entry is an input symbol and a target,
+ * kept in whichever TableLayout the transducer was loaded into: decoded
+ * primitive arrays or, for a mapped transducer, the little-endian file
+ * itself. Entries are addressed by position and nothing is boxed.
+ */
+public class IndexTable
+{
+    private final TableLayout entries;
+
+    /**
+     * Reads index entries in place from a little-endian buffer instead of
+     * decoding them up front, leaving the buffer positioned after the table.
+     */
+    public IndexTable(ByteBuffer buffer,
+		      int indicesCount)
+    { this(new BufferTable(buffer, indicesCount, false, false)); }
+
+    IndexTable(TableLayout entries)
+    { this.entries = entries; }
+
+    public int getInput(int index)
+    { return entries.getInput(index); }
+
+    public long getTarget(int index)
+    { return entries.getTarget(index); }
+
+    /**
+     * The weight of a final index entry is stored in the bits of its target.
+     */
+    public float getFinalWeight(int index)
+    { return Float.intBitsToFloat((int) getTarget(index)); }
+
+    public boolean isFinal(int index)
+    {
+	return (getInput(index) == HfstOptimizedLookup.NO_SYMBOL_NUMBER &&
+		getTarget(index) != HfstOptimizedLookup.NO_TABLE_INDEX);
+    }
+
+    public int size()
+    { return entries.size(); }
+
+    /**
+     * The bytes the decoded entries take on the heap; 0 when they are read
+     * in place from a mapped file.
+     */
+    public long getHeapBytes()
+    { return entries.getHeapBytes(); }
+}
@@ -0,0 +1,51 @@
+package org.apertium.keyboard.hfstol;
+
+/**
+ * Limits on how much work one lookup may do. A lookup that runs into any
+ * of them stops or skips what is over the limit, keeps the analyses it has
+ * found, and marks its results as truncated. A limit of 0 means none.
+ */
+public class LookupBudget
+{
+    /** No limits, except the depth limit kept for epsilon-cyclic transducers. */
+    public static final LookupBudget UNLIMITED = new LookupBudget(0, 0, 0);
+
+    /**
+     * The depth limit used on transducers whose header says they have input
+     * epsilon cycles when the budget sets none, so that going round a cycle
+     * can't go on forever.
+     */
+    public static final int CYCLIC_DEPTH = 1024;
+
+    /** Wall-clock time allowed, in nanoseconds. */
+    public final long timeNanos;
+    /** The most configurations that may be expanded. */
+    public final int maxExpansions;
+    /** The longest path, and the longest output, that may be followed. */
+    public final int maxDepth;
+
+    public LookupBudget(long timeNanos, int maxExpansions, int maxDepth)
+    {
+	this.timeNanos = timeNanos;
+	this.maxExpansions = maxExpansions;
+	this.maxDepth = maxDepth;
+    }
+
+    /**
+     * The depth limit to use on t.
+     */
+    int depthLimit(Transducer t)
+    {
+	if (maxDepth > 0)
+	    { return maxDepth; }
+	if (t.header.hasInputEpsilonCycles())
+	    { return CYCLIC_DEPTH; }
+	return Integer.MAX_VALUE;
+    }
+
+    /**
+     * The time past which a lookup started at start must stop, or 0.
+     */
+    long deadline(long start)
+    { return timeNanos > 0 ? start + timeNanos : 0; }
+}
@@ -0,0 +1,961 @@
+package org.apertium.keyboard.hfstol;
+
+import java.util.Arrays;
+
+/**
+ * Looks up analyses with an explicit work stack instead of recursing once
+ * per state. Each frame of the stack is one state being explored, and all
+ * frames, the input and output buffers and the flag diacritic state live
+ * in primitive arrays that are kept from one lookup to the next. Once the
+ * arrays have grown to fit the inputs seen, lookup allocates nothing, and
+ * long chains of epsilons cost stack entries rather than call frames.
+ *
+ * An engine holds the state of one lookup at a time, so it must not be
+ * shared between threads. The transducer it reads from can be: each thread
+ * looks up with an engine of its own from Transducer.newLookupEngine, or
+ * with one that analyze borrows from the transducer's pool.
+ */
+public class LookupEngine
+{
+    /** Returned instead of a result count when the input can't be tokenized. */
+    public static final int NO_TOKENIZATION = -1;
+
+    // the phases of exploring a state
+    private static final byte START = 0;
+    private static final byte EPSILONS = 1;
+    private static final byte SYMBOLS = 2;
+    private static final byte CLOSURE = 3;
+
+    /** Stands in the input for a character that isn't in the alphabet, when correcting. */
+    private static final int UNKNOWN = -1;
+
+    private Transducer transducer;
+    private EpsilonClosure closure;
+    private IndexTable indexTable;
+    private TransitionTable transitionTable;
+    private Tokenizer tokenizer;
+    private int inputSymbolCount;
+    private boolean weighted;
+    private AnalysisResults results;
+
+    // the budget of the current lookup
+    private long deadline;
+    private int maxExpansions;
+    private int depthLimit;
+    private int expansions;
+    private boolean stopped;
+
+    /** Flag diacritic operation of each symbol, or null for ordinary symbols. */
+    private FlagDiacriticOperation[] flags;
+    private FlagDiacriticState flagState;
+
+    /** Input symbols, terminated by NO_SYMBOL_NUMBER. */
+    private int[] input;
+    private int[] output;
+
+    private int top;
+    private int[] frameIndex;
+    private boolean[] frameInTransitions;
+    private byte[] framePhase;
+    private int[] frameCursor;
+    private int[] frameInput;
+    private int[] frameOutput;
+    private float[] frameWeight;
+    /** Position in the flag state's undo log when the frame was pushed. */
+    private int[] frameFlagMark;
+    /** Whether the frame's epsilons were already taken through a closure. */
+    private boolean[] frameClosed;
+    /** The end of the closure entries of the frame's state. */
+    private int[] frameEntryEnd;
+
+    // the nodes and heap of the best-first search, allocated on first use
+    private int nodeCount;
+    private int[] nodeIndex;
+    private boolean[] nodeInTransitions;
+    /** Whether the node stands for its parent's state being final. */
+    private boolean[] nodeFinal;
+    private int[] nodeParent;
+    private int[] nodeSymbol;
+    /** The number of output symbols along the path to the node. */
+    private int[] nodeLength;
+    private int[] nodeInput;
+    private float[] nodeWeight;
+    private int[] nodeFlagRow;
+    private int heapSize;
+    private int[] heap;
+    /** Rows of flag values, flagState.size() to a row; row 0 is all neutral. */
+    private int[] flagRows;
+    private int rowCount;
+
+    // what a correcting search adds to its nodes
+    private EditWeights edits;
+    /** The weight of the edits along the path to the node. */
+    private float[] nodeCost;
+    /** The input symbol a transposition has still to read, or NO_SYMBOL_NUMBER. */
+    private int[] nodePending;
+
+    public LookupEngine(Transducer t)
+    {
+	transducer = t;
+	indexTable = t.indexTable;
+	transitionTable = t.transitionTable;
+	tokenizer = t.tokenizer;
+	inputSymbolCount = t.header.getInputSymbolCount();
+	weighted = t.header.isWeighted();
+	results = new AnalysisResults(t.alphabet);
+	flags = t.alphabet.flagOperations;
+	flagState = new FlagDiacriticState(t.alphabet.features);
+	input = new int[64];
+	output = new int[64];
+	int frames = 64;
+	frameIndex = new int[frames];
+	frameInTransitions = new boolean[frames];
+	framePhase = new byte[frames];
+	frameCursor = new int[frames];
+	frameInput = new int[frames];
+	frameOutput = new int[frames];
+	frameWeight = new float[frames];
+	frameFlagMark = new int[frames];
+	frameClosed = new boolean[frames];
+	frameEntryEnd = new int[frames];
+    }
+
+    /**
+     * The analyses found by the last lookup. The same object is refilled by
+     * every lookup.
+     */
+    public AnalysisResults getResults()
+    { return results; }
+
+    /**
+     * Tokenizes str and looks it up.
+     *
+     * @return the number of analyses, or NO_TOKENIZATION
+     */
+    public int analyze(CharSequence str)
+    { return analyze(str, 0); }
+
+    /**
+     * Tokenizes str and looks up its n best analyses, or all of them if n
+     * isn't positive.
+     *
+     * @return the number of analyses, or NO_TOKENIZATION
+     */
+    public int analyze(CharSequence str, int n)
+    { return analyze(str, n, LookupBudget.UNLIMITED); }
+
+    /**
+     * Tokenizes str and looks up its n best analyses, or all of them if n
+     * isn't positive, within budget. If the budget runs out the results are
+     * those found so far and are marked as truncated.
+     *
+     * @return the number of analyses, or NO_TOKENIZATION
+     */
+    public int analyze(CharSequence str, int n, LookupBudget budget)
+    {
+	int length = 0;
+	int pos = 0;
+	while (pos < str.length())
+	    {
+		int symbol = tokenizer.find(str, pos, str.length());
+		if (symbol == HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    {
+			results.clear();
+			return NO_TOKENIZATION;
+		    }
+		pos += tokenizer.getLength(symbol);
+		input = ensure(input, length + 2);
+		input[length++] = symbol;
+	    }
+	if (length == 0)
+	    {
+		results.clear();
+		return NO_TOKENIZATION;
+	    }
+	input[length] = HfstOptimizedLookup.NO_SYMBOL_NUMBER;
+	return search(n, budget);
+    }
+
+    /**
+     * Looks up the first length symbols of symbols.
+     *
+     * @return the number of analyses
+     */
+    public int lookup(int[] symbols, int length)
+    { return lookup(symbols, length, 0); }
+
+    /**
+     * Looks up the n best analyses of the first length symbols of symbols,
+     * or all of them if n isn't positive.
+     *
+     * @return the number of analyses
+     */
+    public int lookup(int[] symbols, int length, int n)
+    { return lookup(symbols, length, n, LookupBudget.UNLIMITED); }
+
+    /**
+     * Looks up the n best analyses of the first length symbols of symbols,
+     * or all of them if n isn't positive, within budget.
+     *
+     * @return the number of analyses
+     */
+    public int lookup(int[] symbols, int length, int n, LookupBudget budget)
+    {
+	input = ensure(input, length + 1);
+	System.arraycopy(symbols, 0, input, 0, length);
+	input[length] = HfstOptimizedLookup.NO_SYMBOL_NUMBER;
+	return search(n, budget);
+    }
+
+    /**
+     * Tokenizes str and finds the n best ways of reading it with edits, or
+     * all of them if n isn't positive. See correct(CharSequence, int,
+     * EditWeights, LookupBudget).
+     *
+     * @return the number of corrections
+     */
+    public int correct(CharSequence str, int n, EditWeights edits)
+    { return correct(str, n, edits, LookupBudget.UNLIMITED); }
+
+    /**
+     * Tokenizes str and finds the n best outputs of the paths that read it
+     * with edits, or all of them if n isn't positive, in one best-first
+     * search. The weight of each is the weight of its path plus that of its
+     * edits, and a path is given up as soon as its edits weigh more than
+     * edits.maxCost. An output that several paths lead to is only given
+     * once, with the lightest weight. Characters that aren't in the
+     * alphabet can't be read, but can be deleted or substituted.
+     *
+     * @return the number of corrections
+     */
+    public int correct(CharSequence str, int n, EditWeights edits, LookupBudget budget)
+    {
+	int length = 0;
+	int pos = 0;
+	while (pos < str.length())
+	    {
+		int symbol = tokenizer.find(str, pos, str.length());
+		if (symbol == HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    {
+			symbol = UNKNOWN;
+			pos += Character.charCount(Character.codePointAt(str, pos));
+		    }
+		else
+		    { pos += tokenizer.getLength(symbol); }
+		input = ensure(input, length + 2);
+		input[length++] = symbol;
+	    }
+	input = ensure(input, length + 2);
+	input[length] = HfstOptimizedLookup.NO_SYMBOL_NUMBER;
+	this.edits = edits;
+	begin(budget);
+	return runCorrect(n);
+    }
+
+    private int search(int n, LookupBudget budget)
+    {
+	begin(budget);
+	return n > 0 ? runBest(n) : run();
+    }
+
+    private void begin(LookupBudget budget)
+    {
+	deadline = budget.deadline(System.nanoTime());
+	maxExpansions = budget.maxExpansions;
+	depthLimit = budget.depthLimit(transducer);
+	expansions = 0;
+	stopped = false;
+    }
+
+    /**
+     * Counts one more configuration against the budget.
+     *
+     * @param depth the length of the path to the configuration
+     * @param outputLength the length of its output
+     * @return whether the configuration may be explored
+     */
+    private boolean spend(int depth, int outputLength)
+    {
+	if (stopped)
+	    { return false; }
+	if (depth >= depthLimit || outputLength > depthLimit)
+	    {
+		results.setTruncated();
+		return false;
+	    }
+	++expansions;
+	if ((maxExpansions > 0 && expansions > maxExpansions) ||
+	    (deadline != 0 && (expansions & 63) == 0 && System.nanoTime() - deadline > 0))
+	    {
+		stopped = true;
+		results.setTruncated();
+		return false;
+	    }
+	return true;
+    }
+
+    private int run()
+    {
+	results.clear();
+	flagState.reset();
+	closure = transducer.getEpsilonClosure();
+	top = -1;
+	push(0, 0, 0, 0.0f);
+	while (top >= 0 && !stopped)
+	    {
+		int f = top;
+		if (framePhase[f] == START)
+		    { start(f); }
+		if (framePhase[f] == CLOSURE)
+		    {
+			if (followClosure(f))
+			    { continue; }
+			framePhase[f] = EPSILONS;
+			frameCursor[f] = -1;
+		    }
+		if (framePhase[f] == EPSILONS)
+		    {
+			if (frameCursor[f] >= 0 && followEpsilon(f))
+			    { continue; }
+			int symbol = input[frameInput[f]];
+			if (symbol == HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+			    { // end of input string
+				noteIfFinal(f);
+				--top;
+				continue;
+			    }
+			frameCursor[f] = firstTransition(indexTable, frameIndex[f], frameInTransitions[f], symbol);
+			if (frameCursor[f] < 0)
+			    {
+				--top;
+				continue;
+			    }
+			framePhase[f] = SYMBOLS;
+		    }
+		int i = frameCursor[f];
+		if (transitionTable.getInput(i) == input[frameInput[f]])
+		    {
+			frameCursor[f] = i + 1;
+			flagState.undo(frameFlagMark[f]);
+			follow(f, i, frameInput[f] + 1);
+		    }
+		else
+		    { --top; }
+	    }
+	return results.size();
+    }
+
+    /**
+     * Sets frame f off on its epsilons: through the closure of its state if
+     * there is one, or one transition at a time if not. Frames pushed from a
+     * closure have nothing left to do there.
+     */
+    private void start(int f)
+    {
+	if (frameClosed[f])
+	    {
+		framePhase[f] = EPSILONS;
+		frameCursor[f] = -1;
+		return;
+	    }
+	if (closure != null)
+	    {
+		long state = frameIndex[f];
+		if (frameInTransitions[f])
+		    { state += HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START; }
+		int slot = closure.find(state);
+		if (slot >= 0)
+		    {
+			framePhase[f] = CLOSURE;
+			frameCursor[f] = closure.getFirstEntry(slot);
+			frameEntryEnd[f] = closure.getEndEntry(slot);
+			return;
+		    }
+	    }
+	framePhase[f] = EPSILONS;
+	frameCursor[f] = firstEpsilon(indexTable, frameIndex[f], frameInTransitions[f]);
+    }
+
+    /**
+     * Takes the next entry of frame f's closure whose flags pass, pushing a
+     * frame for its target with the whole path's output and weight.
+     *
+     * @return false if there are no more to take
+     */
+    private boolean followClosure(int f)
+    {
+	flagState.undo(frameFlagMark[f]);
+	for (int entry = frameCursor[f]; entry < frameEntryEnd[f]; ++entry)
+	    {
+		boolean pass = true;
+		for (int pos = closure.getFlagStart(entry); pass && pos < closure.getFlagEnd(entry); ++pos)
+		    { pass = flagState.apply(flags[closure.getFlag(pos)]); }
+		if (!pass)
+		    {
+			flagState.undo(frameFlagMark[f]);
+			continue;
+		    }
+		frameCursor[f] = entry + 1;
+		int outputPosition = frameOutput[f];
+		int start = closure.getOutputStart(entry);
+		int end = closure.getOutputEnd(entry);
+		if (!spend(top + 1, outputPosition + end - start))
+		    {
+			flagState.undo(frameFlagMark[f]);
+			continue;
+		    }
+		output = ensure(output, outputPosition + end - start);
+		// the weights go on one transition at a time, as walking the
+		// path would add them
+		float weight = frameWeight[f];
+		for (int pos = start; pos < end; ++pos)
+		    {
+			output[outputPosition++] = closure.getOutput(pos);
+			weight += closure.getWeight(pos);
+		    }
+		push(closure.getTarget(entry), frameInput[f], outputPosition, weight);
+		frameClosed[top] = true;
+		return true;
+	    }
+	frameCursor[f] = frameEntryEnd[f];
+	return false;
+    }
+
+    /**
+     * Position of the first epsilon or flag transition of the state at index,
+     * or -1 if there are none.
+     */
+    static int firstEpsilon(IndexTable indexTable, int index, boolean inTransitions)
+    {
+	if (inTransitions)
+	    { return index + 1; }
+	if (indexTable.getInput(index + 1) == 0)
+	    { return pivot(indexTable.getTarget(index + 1)); }
+	return -1;
+    }
+
+    /**
+     * Position of the first transition on symbol from the state at index, or
+     * -1 if there are none.
+     */
+    static int firstTransition(IndexTable indexTable, int index, boolean inTransitions,
+			       int symbol)
+    {
+	if (inTransitions)
+	    { return index + 1; }
+	if (indexTable.getInput(index + 1 + symbol) == symbol)
+	    { return pivot(indexTable.getTarget(index + 1 + symbol)); }
+	return -1;
+    }
+
+    /**
+     * Takes the next epsilon or flag transition of frame f that can be taken,
+     * pushing a frame for its target.
+     *
+     * @return false if there are no more to take
+     */
+    private boolean followEpsilon(int f)
+    {
+	flagState.undo(frameFlagMark[f]); // forget what the previous one did
+	int i = frameCursor[f];
+	while (true)
+	    {
+		int symbol = transitionTable.getInput(i);
+		if (symbol < flags.length && flags[symbol] != null)
+		    {
+			if (!flagState.apply(flags[symbol]))
+			    {
+				++i;
+				continue;
+			    }
+		    }
+		else if (symbol != 0)
+		    {
+			frameCursor[f] = -1;
+			return false;
+		    }
+		frameCursor[f] = i + 1;
+		follow(f, i, frameInput[f]);
+		return true;
+	    }
+    }
+
+    /**
+     * Pushes a frame for the target of transition i out of frame f.
+     */
+    private void follow(int f, int i, int inputPosition)
+    {
+	int outputPosition = frameOutput[f];
+	if (!spend(top + 1, outputPosition + 1))
+	    { return; }
+	output = ensure(output, outputPosition + 1);
+	output[outputPosition] = transitionTable.getOutput(i);
+	push(transitionTable.getTarget(i), inputPosition, outputPosition + 1,
+	     frameWeight[f] + transitionTable.getWeight(i));
+    }
+
+    private void noteIfFinal(int f)
+    {
+	int index = frameIndex[f];
+	if (frameInTransitions[f])
+	    {
+		if (index < transitionTable.size() && transitionTable.isFinal(index))
+		    {
+			results.add(output, frameOutput[f],
+				    frameWeight[f] + transitionTable.getWeight(index));
+		    }
+	    }
+	else if (indexTable.isFinal(index))
+	    {
+		float weight = frameWeight[f];
+		if (weighted)
+		    { weight += indexTable.getFinalWeight(index); }
+		results.add(output, frameOutput[f], weight);
+	    }
+    }
+
+    private void push(long target, int inputPosition, int outputPosition, float weight)
+    {
+	++top;
+	if (top == frameIndex.length)
+	    {
+		int frames = top*2;
+		frameIndex = Arrays.copyOf(frameIndex, frames);
+		frameInTransitions = Arrays.copyOf(frameInTransitions, frames);
+		framePhase = Arrays.copyOf(framePhase, frames);
+		frameCursor = Arrays.copyOf(frameCursor, frames);
+		frameInput = Arrays.copyOf(frameInput, frames);
+		frameOutput = Arrays.copyOf(frameOutput, frames);
+		frameWeight = Arrays.copyOf(frameWeight, frames);
+		frameFlagMark = Arrays.copyOf(frameFlagMark, frames);
+		frameClosed = Arrays.copyOf(frameClosed, frames);
+		frameEntryEnd = Arrays.copyOf(frameEntryEnd, frames);
+	    }
+	frameInTransitions[top] = target >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START;
+	frameIndex[top] = pivot(target);
+	framePhase[top] = START;
+	frameInput[top] = inputPosition;
+	frameOutput[top] = outputPosition;
+	frameWeight[top] = weight;
+	frameFlagMark[top] = flagState.mark();
+	frameClosed[top] = false;
+    }
+
+    /**
+     * Explores configurations in order of weight, cheapest first, and stops
+     * once n finals have come off the heap. Since weights only grow along a
+     * path, nothing left on the heap can then beat them, so the results are
+     * the n best, in order. This holds as long as no transition or final
+     * weight is negative.
+     *
+     * Unlike the depth-first search, many configurations are alive at once,
+     * so each is a node with its own weight, a link to its parent for the
+     * output, and a row of flag values shared with its parent until a flag
+     * changes it.
+     */
+    private int runBest(int n)
+    {
+	startNodes();
+	while (heapSize > 0 && results.size() < n && !stopped)
+	    {
+		int node = poll();
+		if (nodeFinal[node])
+		    {
+			noteNode(node);
+			continue;
+		    }
+		flagState.load(flagRows, nodeFlagRow[node]*flagState.size());
+		addEpsilons(node);
+		int symbol = input[nodeInput[node]];
+		if (symbol == HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    {
+			addFinal(node);
+			continue;
+		    }
+		addMatches(node, symbol, nodeInput[node] + 1, 0.0f, HfstOptimizedLookup.NO_SYMBOL_NUMBER);
+	    }
+	return results.size();
+    }
+
+    /**
+     * The search of runBest, with edits. Each node's weight includes the
+     * weight of the edits on its path, so corrections still come off the
+     * heap lightest first, and its cost is the weight of those edits alone,
+     * which is what maxCost bounds.
+     */
+    private int runCorrect(int n)
+    {
+	startNodes();
+	while (heapSize > 0 && (n <= 0 || results.size() < n) && !stopped)
+	    {
+		int node = poll();
+		if (nodeFinal[node])
+		    {
+			noteNewNode(node);
+			continue;
+		    }
+		flagState.load(flagRows, nodeFlagRow[node]*flagState.size());
+		addEpsilons(node);
+		int position = nodeInput[node];
+		if (nodePending[node] != HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    {
+			// the second half of a transposition, which must come next
+			addMatches(node, nodePending[node], position, 0.0f,
+				   HfstOptimizedLookup.NO_SYMBOL_NUMBER);
+			continue;
+		    }
+		int symbol = input[position];
+		if (symbol == HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    { addFinal(node); }
+		else
+		    {
+			addMatches(node, symbol, position + 1, 0.0f, HfstOptimizedLookup.NO_SYMBOL_NUMBER);
+			addDeletion(node);
+			int next = input[position + 1];
+			if (symbol != UNKNOWN && next != symbol &&
+			    next != HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+			    { addMatches(node, next, position + 2, edits.transposition, symbol); }
+		    }
+		// insertions and substitutions of whatever the state can read
+		int index = nodeIndex[node];
+		if (nodeInTransitions[node])
+		    {
+			// as in a lookup, such a state only reads the symbol of its first transition
+			if (index + 1 < transitionTable.size())
+			    { addEdits(node, transitionTable.getInput(index + 1), symbol); }
+		    }
+		else
+		    {
+			for (int s = 1; s < inputSymbolCount; ++s)
+			    {
+				if (indexTable.getInput(index + 1 + s) == s)
+				    { addEdits(node, s, symbol); }
+			    }
+		    }
+	    }
+	return results.size();
+    }
+
+    private void startNodes()
+    {
+	results.clear();
+	if (nodeIndex == null)
+	    { allocateNodes(); }
+	nodeCount = 0;
+	heapSize = 0;
+	rowCount = 1;
+	Arrays.fill(flagRows, 0, flagState.size(), 0);
+	addNode(0, -1, HfstOptimizedLookup.NO_SYMBOL_NUMBER, 0, 0.0f, 0);
+    }
+
+    /**
+     * Adds a child of node for each epsilon transition out of its state,
+     * and for each flag transition whose flag passes, with the flag values
+     * the flag leaves.
+     */
+    private void addEpsilons(int node)
+    {
+	int i = firstEpsilon(indexTable, nodeIndex[node], nodeInTransitions[node]);
+	while (i >= 0)
+	    {
+		int symbol = transitionTable.getInput(i);
+		int row = nodeFlagRow[node];
+		if (symbol < flags.length && flags[symbol] != null)
+		    {
+			int mark = flagState.mark();
+			if (flagState.apply(flags[symbol]))
+			    { row = flagState.changedSince(mark) ? storeRow() : row; }
+			else
+			    { row = -1; }
+			flagState.undo(mark);
+		    }
+		else if (symbol != 0)
+		    { break; }
+		if (row >= 0)
+		    { addChild(node, i, nodeInput[node], row, 0.0f); }
+		++i;
+	    }
+    }
+
+    /**
+     * Adds a child of node for each transition on symbol out of its state.
+     *
+     * @param cost the weight of the edit that reading symbol makes, if any
+     * @param pending what the children still have to read, for the first
+     * half of a transposition
+     */
+    private void addMatches(int node, int symbol, int inputPosition, float cost, int pending)
+    {
+	if (symbol == UNKNOWN || (cost > 0 && nodeCost[node] + cost > edits.maxCost))
+	    { return; }
+	int i = firstTransition(indexTable, nodeIndex[node], nodeInTransitions[node], symbol);
+	if (i < 0)
+	    { return; }
+	while (transitionTable.getInput(i) == symbol)
+	    {
+		int child = addChild(node, i, inputPosition, nodeFlagRow[node], cost);
+		if (child >= 0)
+		    { nodePending[child] = pending; }
+		++i;
+	    }
+    }
+
+    /**
+     * Adds the children of node that read s as an insertion or, if the
+     * input symbol at node isn't s, in place of it.
+     */
+    private void addEdits(int node, int s, int symbol)
+    {
+	if (s == 0 || s == HfstOptimizedLookup.NO_SYMBOL_NUMBER ||
+	    (s < flags.length && flags[s] != null))
+	    { return; }
+	addMatches(node, s, nodeInput[node], edits.insertion, HfstOptimizedLookup.NO_SYMBOL_NUMBER);
+	if (symbol != HfstOptimizedLookup.NO_SYMBOL_NUMBER && s != symbol)
+	    {
+		addMatches(node, s, nodeInput[node] + 1, edits.substitution,
+			   HfstOptimizedLookup.NO_SYMBOL_NUMBER);
+	    }
+    }
+
+    /**
+     * Adds a child of node in the same state that has skipped an input symbol.
+     */
+    private void addDeletion(int node)
+    {
+	if (nodeCost[node] + edits.deletion > edits.maxCost ||
+	    !spend(nodeLength[node] + 1, nodeLength[node]))
+	    { return; }
+	long state = nodeIndex[node];
+	if (nodeInTransitions[node])
+	    { state += HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START; }
+	int child = addNode(state, node, HfstOptimizedLookup.NO_SYMBOL_NUMBER, nodeInput[node] + 1,
+			    nodeWeight[node] + edits.deletion, nodeFlagRow[node]);
+	nodeCost[child] += edits.deletion;
+    }
+
+    /**
+     * Adds a final node for node if its state is final, carrying the final
+     * weight, so that it comes off the heap in its proper place.
+     */
+    private void addFinal(int node)
+    {
+	int index = nodeIndex[node];
+	float weight = nodeWeight[node];
+	if (nodeInTransitions[node])
+	    {
+		if (index >= transitionTable.size() || !transitionTable.isFinal(index))
+		    { return; }
+		weight += transitionTable.getWeight(index);
+	    }
+	else
+	    {
+		if (!indexTable.isFinal(index))
+		    { return; }
+		if (weighted)
+		    { weight += indexTable.getFinalWeight(index); }
+	    }
+	int fin = addNode(0, node, HfstOptimizedLookup.NO_SYMBOL_NUMBER,
+			  nodeInput[node], weight, nodeFlagRow[node]);
+	nodeFinal[fin] = true;
+    }
+
+    /**
+     * Adds a child of parent for transition i, with cost added to its
+     * weight for an edit.
+     *
+     * @return the child, or -1 if the budget doesn't allow it
+     */
+    private int addChild(int parent, int i, int inputPosition, int row, float cost)
+    {
+	if (!spend(nodeLength[parent] + 1, nodeLength[parent] + 1))
+	    { return -1; }
+	int child = addNode(transitionTable.getTarget(i), parent, transitionTable.getOutput(i),
+			    inputPosition, nodeWeight[parent] + transitionTable.getWeight(i) + cost, row);
+	nodeCost[child] += cost;
+	return child;
+    }
+
+    /**
+     * Walks from a final node back to the root to collect its output.
+     */
+    private void noteNode(int node)
+    { results.add(output, collect(node), nodeWeight[node]); }
+
+    /**
+     * Notes a final node of a correcting search unless an earlier one
+     * spelled the same output, leaving out the symbols that spell nothing.
+     */
+    private void noteNewNode(int node)
+    {
+	char[][] chars = transducer.alphabet.symbolChars;
+	int length = 0;
+	for (int pos = 0, end = collect(node); pos < end; ++pos)
+	    {
+		if (chars[output[pos]].length > 0)
+		    { output[length++] = output[pos]; }
+	    }
+	int[] symbols = results.getSymbols();
+	for (int r = 0; r < results.size(); ++r)
+	    {
+		int start = results.getStart(r);
+		if (results.getEnd(r) - start != length)
+		    { continue; }
+		int pos = 0;
+		while (pos < length && symbols[start + pos] == output[pos])
+		    { ++pos; }
+		if (pos == length)
+		    { return; }
+	    }
+	results.add(output, length, nodeWeight[node]);
+    }
+
+    /**
+     * Puts the output along the path to node into output.
+     *
+     * @return its length
+     */
+    private int collect(int node)
+    {
+	int length = nodeLength[node];
+	output = ensure(output, length);
+	for (int at = node; at > 0; at = nodeParent[at])
+	    {
+		if (nodeSymbol[at] != HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    { output[--length] = nodeSymbol[at]; }
+	    }
+	return nodeLength[node];
+    }
+
+    private int storeRow()
+    {
+	int features = flagState.size();
+	if ((rowCount + 1)*features > flagRows.length)
+	    { flagRows = Arrays.copyOf(flagRows, (rowCount + 1)*features*2); }
+	flagState.store(flagRows, rowCount*features);
+	return rowCount++;
+    }
+
+    private void allocateNodes()
+    {
+	int nodes = 64;
+	nodeIndex = new int[nodes];
+	nodeInTransitions = new boolean[nodes];
+	nodeFinal = new boolean[nodes];
+	nodeParent = new int[nodes];
+	nodeSymbol = new int[nodes];
+	nodeLength = new int[nodes];
+	nodeInput = new int[nodes];
+	nodeWeight = new float[nodes];
+	nodeFlagRow = new int[nodes];
+	nodeCost = new float[nodes];
+	nodePending = new int[nodes];
+	heap = new int[nodes];
+	flagRows = new int[Math.max(1, flagState.size()*16)];
+    }
+
+    /**
+     * Creates a node and puts it on the heap.
+     *
+     * @param symbol the output symbol of the transition that led to it, or
+     * NO_SYMBOL_NUMBER for none
+     */
+    private int addNode(long target, int parent, int symbol, int inputPosition,
+			float weight, int row)
+    {
+	if (nodeCount == nodeIndex.length)
+	    {
+		int nodes = nodeCount*2;
+		nodeIndex = Arrays.copyOf(nodeIndex, nodes);
+		nodeInTransitions = Arrays.copyOf(nodeInTransitions, nodes);
+		nodeFinal = Arrays.copyOf(nodeFinal, nodes);
+		nodeParent = Arrays.copyOf(nodeParent, nodes);
+		nodeSymbol = Arrays.copyOf(nodeSymbol, nodes);
+		nodeLength = Arrays.copyOf(nodeLength, nodes);
+		nodeInput = Arrays.copyOf(nodeInput, nodes);
+		nodeWeight = Arrays.copyOf(nodeWeight, nodes);
+		nodeFlagRow = Arrays.copyOf(nodeFlagRow, nodes);
+		nodeCost = Arrays.copyOf(nodeCost, nodes);
+		nodePending = Arrays.copyOf(nodePending, nodes);
+		heap = Arrays.copyOf(heap, nodes);
+	    }
+	int node = nodeCount++;
+	nodeInTransitions[node] = target >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START;
+	nodeIndex[node] = pivot(target);
+	nodeFinal[node] = false;
+	nodeParent[node] = parent;
+	nodeSymbol[node] = symbol;
+	nodeLength[node] = parent < 0 ? 0 : nodeLength[parent];
+	if (symbol != HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+	    { ++nodeLength[node]; }
+	nodeInput[node] = inputPosition;
+	nodeWeight[node] = weight;
+	nodeFlagRow[node] = row;
+	// edits are inherited; whoever makes one adds it
+	nodeCost[node] = parent < 0 ? 0.0f : nodeCost[parent];
+	nodePending[node] = parent < 0 ? HfstOptimizedLookup.NO_SYMBOL_NUMBER : nodePending[parent];
+	// sift up
+	int at = heapSize++;
+	while (at > 0)
+	    {
+		int up = (at - 1) >>> 1;
+		if (!before(node, heap[up]))
+		    { break; }
+		heap[at] = heap[up];
+		at = up;
+	    }
+	heap[at] = node;
+	return node;
+    }
+
+    /**
+     * Takes the cheapest node off the heap.
+     */
+    private int poll()
+    {
+	int first = heap[0];
+	int last = heap[--heapSize];
+	int at = 0;
+	while (true)
+	    {
+		int child = 2*at + 1;
+		if (child >= heapSize)
+		    { break; }
+		if (child + 1 < heapSize && before(heap[child + 1], heap[child]))
+		    { ++child; }
+		if (!before(heap[child], last))
+		    { break; }
+		heap[at] = heap[child];
+		at = child;
+	    }
+	if (heapSize > 0)
+	    { heap[at] = last; }
+	return first;
+    }
+
+    /**
+     * Whether node a comes off the heap before node b: the lighter one does,
+     * and of equal weights the older one, so that ties come out in a fixed
+     * order.
+     */
+    private boolean before(int a, int b)
+    {
+	if (nodeWeight[a] != nodeWeight[b])
+	    { return nodeWeight[a] < nodeWeight[b]; }
+	return a < b;
+    }
+
+    static int pivot(long i)
+    {
+	if (i >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START) {
+	    return (int) (i - HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START);
+	}
+	return (int) i;
+    }
+
+    static int[] ensure(int[] array, int size)
+    {
+	if (array.length >= size)
+	    { return array; }
+	return Arrays.copyOf(array, Math.max(size, array.length*2));
+    }
+}
@@ -0,0 +1,696 @@
+package org.apertium.keyboard.hfstol;
+
+import java.util.Arrays;
+
+/**
+ * Looks up a word while it is being typed. The session keeps, for every
+ * input symbol of the word so far, the frontier of configurations the
+ * transducer can be in after reading up to that symbol. A configuration is
+ * a state and a row of flag values; however many paths reach it, it is a
+ * single node of a lattice, which keeps the weight of its lightest path and
+ * an arc back along the last transition of each path. Typing a character
+ * only extends the frontier of the last symbol, and backspace drops
+ * frontiers, so the work done per keystroke depends on the size of the
+ * frontier, which the states and flag values of the transducer bound,
+ * rather than on the length of the word or the number of paths. Outputs
+ * are only spelled out when analyze follows the arcs back from the final
+ * nodes, lightest path first.
+ *
+ * Nodes and arcs are allocated in the order of the symbols, so the
+ * frontier of each symbol is a contiguous run of nodes, its arcs are a
+ * contiguous run of arcs, and dropping symbols just cuts the runs off the
+ * end.
+ *
+ * A session must not be shared between threads.
+ */
+public class LookupSession
+{
+    private IndexTable indexTable;
+    private TransitionTable transitionTable;
+    private Tokenizer tokenizer;
+    private boolean weighted;
+    private FlagDiacriticOperation[] flags;
+    private FlagDiacriticState flagState;
+    private AnalysisResults results;
+    /** The most characters in any input symbol. */
+    private int longestSymbol;
+
+    private StringBuilder text;
+    /** Whether the text after the last symbol couldn't be tokenized. */
+    private boolean stuck;
+
+    private Transducer transducer;
+    private LookupBudget budget;
+    // the budget of the current update
+    private long deadline;
+    private int depthLimit;
+    private int expansions;
+    private boolean stopped;
+    /** The first symbol whose frontier was cut short, or Integer.MAX_VALUE. */
+    private int truncatedFrom;
+
+    // per symbol: where its characters start in text, the symbol and
+    // where its frontier, arcs and rows start; entry symbolCount is for
+    // the text end
+    private int symbolCount;
+    private int[] symbolChar;
+    private int[] symbolNumbers;
+    private int[] levelNode;
+    private int[] levelArc;
+    private int[] levelRow;
+
+    private int nodeCount;
+    private int[] nodeIndex;
+    private boolean[] nodeInTransitions;
+    private int[] nodeFlagRow;
+    /** The weight of the lightest path to the node. */
+    private float[] nodeWeight;
+    /** The last arc into the node, or -1. */
+    private int[] nodeArc;
+    /** The fewest transitions on a path to the node. */
+    private int[] nodeDepth;
+    /** Rows of flag values, flagState.size() to a row; row 0 is all neutral. */
+    private int[] flagRows;
+    private int rowCount;
+
+    // arcs: the transition each one follows, the node it leaves from and
+    // the next arc into the same node, or -1
+    private int arcCount;
+    private int[] arcTransition;
+    private int[] arcSource;
+    private int[] arcNext;
+
+    // the nodes of the frontier being built by state and flag row, open
+    // addressed; a slot is in use if its stamp is the frontier's
+    private int[] slotNodes;
+    private int[] slotStamps;
+    private int stamp;
+
+    // the paths followed back from the final nodes by analyze: the node
+    // each has got back to, the arc it left it by and the path it came
+    // from there, or -1 for a path that ends at the node, with the weight
+    // from the node to the end
+    private int pathCount;
+    private int[] pathNode;
+    private int[] pathArc;
+    private int[] pathNext;
+    private int[] pathLength;
+    private float[] pathWeight;
+    private int heapSize;
+    private int[] heap;
+
+    private int[] output;
+
+    public LookupSession(Transducer t)
+    {
+	transducer = t;
+	budget = LookupBudget.UNLIMITED;
+	indexTable = t.indexTable;
+	transitionTable = t.transitionTable;
+	tokenizer = t.tokenizer;
+	weighted = t.header.isWeighted();
+	flags = t.alphabet.flagOperations;
+	flagState = new FlagDiacriticState(t.alphabet.features);
+	results = new AnalysisResults(t.alphabet);
+	longestSymbol = tokenizer.getLongestSymbol();
+	text = new StringBuilder();
+	symbolChar = new int[16];
+	symbolNumbers = new int[16];
+	levelNode = new int[16];
+	levelArc = new int[16];
+	levelRow = new int[16];
+	int nodes = 64;
+	nodeIndex = new int[nodes];
+	nodeInTransitions = new boolean[nodes];
+	nodeFlagRow = new int[nodes];
+	nodeWeight = new float[nodes];
+	nodeArc = new int[nodes];
+	nodeDepth = new int[nodes];
+	flagRows = new int[Math.max(1, flagState.size()*16)];
+	arcTransition = new int[nodes];
+	arcSource = new int[nodes];
+	arcNext = new int[nodes];
+	slotNodes = new int[nodes];
+	slotStamps = new int[nodes];
+	pathNode = new int[nodes];
+	pathArc = new int[nodes];
+	pathNext = new int[nodes];
+	pathLength = new int[nodes];
+	pathWeight = new float[nodes];
+	heap = new int[nodes];
+	output = new int[64];
+	reset();
+    }
+
+    /**
+     * Starts a new, empty word.
+     */
+    public void reset()
+    {
+	startUpdate();
+	truncatedFrom = Integer.MAX_VALUE;
+	text.setLength(0);
+	stuck = false;
+	symbolCount = 0;
+	nodeCount = 0;
+	arcCount = 0;
+	rowCount = 1;
+	Arrays.fill(flagRows, 0, flagState.size(), 0);
+	symbolChar[0] = 0;
+	levelNode[0] = 0;
+	levelArc[0] = 0;
+	levelRow[0] = rowCount;
+	++stamp;
+	nodeDepth[findNode(0, 0)] = 0;
+	closeEpsilons(0);
+	weigh(0);
+    }
+
+    /**
+     * Sets the limits on the work done for each change to the word, from
+     * the next change on. Once a change runs out of budget, the frontiers of
+     * the symbols it was working on stay incomplete, and the results of the
+     * word are marked as truncated until those symbols are removed.
+     */
+    public void setBudget(LookupBudget b)
+    { budget = b; }
+
+    /**
+     * The word so far.
+     */
+    public CharSequence getText()
+    { return text; }
+
+    public void append(char c)
+    {
+	text.append(c);
+	update(text.length() - 1);
+    }
+
+    public void append(CharSequence chars)
+    {
+	int changed = text.length();
+	text.append(chars);
+	update(changed);
+    }
+
+    /**
+     * Removes the last character of the word, if there is one.
+     */
+    public void backspace()
+    {
+	if (text.length() == 0)
+	    { return; }
+	text.setLength(text.length() - 1);
+	update(text.length());
+    }
+
+    /**
+     * Makes the word chars, keeping whatever it has in common with the word
+     * so far.
+     */
+    public void setText(CharSequence chars)
+    {
+	int common = 0;
+	int limit = Math.min(chars.length(), text.length());
+	while (common < limit && chars.charAt(common) == text.charAt(common))
+	    { ++common; }
+	if (common == text.length() && common == chars.length())
+	    { return; }
+	text.setLength(common);
+	text.append(chars, common, chars.length());
+	update(common);
+    }
+
+    /**
+     * The number of configurations the word so far can leave the
+     * transducer in.
+     */
+    public int getFrontierSize()
+    { return nodeCount - levelNode[symbolCount]; }
+
+    /**
+     * The analyses found by the last call to analyze.
+     */
+    public AnalysisResults getResults()
+    { return results; }
+
+    /**
+     * Finds the analyses of the word so far: the n lightest, lightest first,
+     * or all of them in no particular order if n isn't positive.
+     *
+     * The paths are followed back from the final nodes of the last frontier
+     * in order of the weight of the whole path: what they weigh from where
+     * they have got back to on, plus the weight of the lightest path to
+     * there. A path that gets back to the start is therefore lighter than
+     * any path not yet there. A path longer than the lattice has nodes goes
+     * round an epsilon cycle, and is followed no further; nor is one as long
+     * as the budget's depth limit, which marks the results as truncated.
+     *
+     * @return the number of analyses, or LookupEngine.NO_TOKENIZATION
+     */
+    public int analyze(int n)
+    {
+	results.clear();
+	if (stuck || symbolCount == 0)
+	    { return LookupEngine.NO_TOKENIZATION; }
+	if (truncatedFrom <= symbolCount)
+	    { results.setTruncated(); }
+	pathCount = 0;
+	heapSize = 0;
+	for (int node = levelNode[symbolCount]; node < nodeCount; ++node)
+	    {
+		int index = nodeIndex[node];
+		float weight = 0.0f;
+		if (nodeInTransitions[node])
+		    {
+			if (index >= transitionTable.size() || !transitionTable.isFinal(index))
+			    { continue; }
+			weight = transitionTable.getWeight(index);
+		    }
+		else
+		    {
+			if (!indexTable.isFinal(index))
+			    { continue; }
+			if (weighted)
+			    { weight = indexTable.getFinalWeight(index); }
+		    }
+		addPath(node, -1, -1, 0, weight);
+	    }
+	while (heapSize > 0 && (n <= 0 || results.size() < n))
+	    {
+		int path = poll();
+		int node = pathNode[path];
+		if (node == 0)
+		    { note(path); }
+		if (pathLength[path] >= nodeCount)
+		    { continue; }
+		if (pathLength[path] >= depthLimit)
+		    {
+			results.setTruncated();
+			continue;
+		    }
+		for (int arc = nodeArc[node]; arc >= 0; arc = arcNext[arc])
+		    {
+			addPath(arcSource[arc], arc, path, pathLength[path] + 1,
+				pathWeight[path] + transitionTable.getWeight(arcTransition[arc]));
+		    }
+	    }
+	return results.size();
+    }
+
+    /**
+     * Brings the symbols and frontiers up to date with text, which has
+     * changed from character changed on.
+     */
+    private void update(int changed)
+    {
+	startUpdate();
+	// A symbol is chosen by looking at most longestSymbol characters
+	// ahead, so only the symbols that could see the change can differ,
+	// and their frontiers only need redoing if they do.
+	int keep = symbolCount;
+	while (keep > 0 && symbolChar[keep - 1] + longestSymbol > changed)
+	    { --keep; }
+	while (keep < symbolCount &&
+	       tokenizer.find(text, symbolChar[keep], text.length()) == symbolNumbers[keep])
+	    { ++keep; }
+	if (keep < symbolCount)
+	    { truncate(keep); }
+	else if (stuck && symbolChar[symbolCount] + longestSymbol <= changed)
+	    { return; }
+	stuck = false;
+	int pos = symbolChar[symbolCount];
+	while (pos < text.length())
+	    {
+		int symbol = tokenizer.find(text, pos, text.length());
+		if (symbol == HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    {
+			stuck = true;
+			return;
+		    }
+		pos += tokenizer.getLength(symbol);
+		extend(symbol, pos);
+	    }
+    }
+
+    /**
+     * Drops every symbol from keep on, with their frontiers.
+     */
+    private void truncate(int keep)
+    {
+	if (truncatedFrom > keep)
+	    { truncatedFrom = Integer.MAX_VALUE; }
+	symbolCount = keep;
+	nodeCount = levelNode[keep + 1];
+	arcCount = levelArc[keep + 1];
+	rowCount = levelRow[keep + 1];
+    }
+
+    /**
+     * Reads symbol, which ends at character end, from every configuration
+     * of the last frontier.
+     */
+    private void extend(int symbol, int end)
+    {
+	int level = symbolCount;
+	if (level + 2 >= symbolChar.length)
+	    {
+		int size = symbolChar.length*2;
+		symbolChar = Arrays.copyOf(symbolChar, size);
+		symbolNumbers = Arrays.copyOf(symbolNumbers, size);
+		levelNode = Arrays.copyOf(levelNode, size);
+		levelArc = Arrays.copyOf(levelArc, size);
+		levelRow = Arrays.copyOf(levelRow, size);
+	    }
+	int from = levelNode[level];
+	int to = nodeCount;
+	symbolNumbers[level] = symbol;
+	symbolChar[level + 1] = end;
+	levelNode[level + 1] = to;
+	levelArc[level + 1] = arcCount;
+	levelRow[level + 1] = rowCount;
+	++symbolCount;
+	++stamp;
+	for (int node = from; node < to; ++node)
+	    {
+		int i = LookupEngine.firstTransition(indexTable, nodeIndex[node],
+						     nodeInTransitions[node], symbol);
+		if (i < 0)
+		    { continue; }
+		while (transitionTable.getInput(i) == symbol)
+		    {
+			addArc(node, i, nodeFlagRow[node]);
+			++i;
+		    }
+	    }
+	closeEpsilons(to);
+	weigh(to);
+    }
+
+    /**
+     * Follows every epsilon and flag transition that can be taken from the
+     * nodes from first on, including the nodes this adds. Each node is
+     * expanded once, however many arcs lead into it.
+     */
+    private void closeEpsilons(int first)
+    {
+	for (int node = first; node < nodeCount; ++node)
+	    {
+		int i = LookupEngine.firstEpsilon(indexTable, nodeIndex[node],
+						  nodeInTransitions[node]);
+		if (i < 0)
+		    { continue; }
+		flagState.load(flagRows, nodeFlagRow[node]*flagState.size());
+		while (true)
+		    {
+			int symbol = transitionTable.getInput(i);
+			int row = nodeFlagRow[node];
+			if (symbol < flags.length && flags[symbol] != null)
+			    {
+				int mark = flagState.mark();
+				if (flagState.apply(flags[symbol]))
+				    { row = flagState.changedSince(mark) ? storeRow() : row; }
+				else
+				    { row = -1; }
+				flagState.undo(mark);
+			    }
+			else if (symbol != 0)
+			    { break; }
+			if (row >= 0)
+			    { addArc(node, i, row); }
+			++i;
+		    }
+	    }
+    }
+
+    /**
+     * Works out the weight of the lightest path to each node from first on,
+     * which are the whole of the last frontier. Arcs between nodes of the
+     * frontier can lead back to nodes already weighed, so this goes over
+     * them again until nothing gets lighter; a round that changes nothing
+     * is usually the second.
+     */
+    private void weigh(int first)
+    {
+	for (int node = first; node < nodeCount; ++node)
+	    { nodeWeight[node] = node == 0 ? 0.0f : Float.POSITIVE_INFINITY; }
+	boolean changed = true;
+	for (int round = first; changed && round <= nodeCount; ++round)
+	    {
+		changed = false;
+		for (int node = first; node < nodeCount; ++node)
+		    {
+			for (int arc = nodeArc[node]; arc >= 0; arc = arcNext[arc])
+			    {
+				float weight = nodeWeight[arcSource[arc]] +
+				    transitionTable.getWeight(arcTransition[arc]);
+				if (weight < nodeWeight[node])
+				    {
+					nodeWeight[node] = weight;
+					changed = true;
+				    }
+			    }
+		    }
+	    }
+    }
+
+    /**
+     * Spells out the output of a path that has got back to the start,
+     * adding up its weight from the start as a lookup would.
+     */
+    private void note(int path)
+    {
+	int length = pathLength[path];
+	output = LookupEngine.ensure(output, length);
+	float weight = 0.0f;
+	int at = path;
+	for (int i = 0; i < length; ++i)
+	    {
+		int transition = arcTransition[pathArc[at]];
+		output[i] = transitionTable.getOutput(transition);
+		weight += transitionTable.getWeight(transition);
+		at = pathNext[at];
+	    }
+	results.add(output, length, weight + pathWeight[at]);
+    }
+
+    /**
+     * Stores the flag state as a row, unless the frontier being built
+     * already has a row of the same values, so that configurations that
+     * only differ in how they set their flags share a node.
+     */
+    private int storeRow()
+    {
+	int features = flagState.size();
+	if ((rowCount + 1)*features > flagRows.length)
+	    { flagRows = Arrays.copyOf(flagRows, (rowCount + 1)*features*2); }
+	int offset = rowCount*features;
+	flagState.store(flagRows, offset);
+	for (int row = levelRow[symbolCount]; row < rowCount; ++row)
+	    {
+		int f = 0;
+		while (f < features && flagRows[row*features + f] == flagRows[offset + f])
+		    { ++f; }
+		if (f == features)
+		    { return row; }
+	    }
+	return rowCount++;
+    }
+
+    private void startUpdate()
+    {
+	deadline = budget.deadline(System.nanoTime());
+	depthLimit = budget.depthLimit(transducer);
+	expansions = 0;
+	stopped = false;
+    }
+
+    /**
+     * Counts one more arc of the frontier being built, from a node depth
+     * transitions from the start, against the budget.
+     *
+     * @return whether the arc may be added
+     */
+    private boolean spend(int depth)
+    {
+	if (!stopped && depth >= depthLimit)
+	    {
+		truncatedFrom = Math.min(truncatedFrom, symbolCount);
+		return false;
+	    }
+	++expansions;
+	if (stopped ||
+	    (budget.maxExpansions > 0 && expansions > budget.maxExpansions) ||
+	    (deadline != 0 && (expansions & 63) == 0 && System.nanoTime() - deadline > 0))
+	    {
+		stopped = true;
+		truncatedFrom = Math.min(truncatedFrom, symbolCount);
+		return false;
+	    }
+	return true;
+    }
+
+    /**
+     * Adds an arc along transition i from node source to the node of its
+     * target with flag row row, which is made if the frontier lacks it,
+     * unless the budget has run out.
+     */
+    private void addArc(int source, int i, int row)
+    {
+	int depth = nodeDepth[source] + 1;
+	if (!spend(depth))
+	    { return; }
+	int node = findNode(transitionTable.getTarget(i), row);
+	nodeDepth[node] = Math.min(nodeDepth[node], depth);
+	if (arcCount == arcSource.length)
+	    {
+		int arcs = arcCount*2;
+		arcTransition = Arrays.copyOf(arcTransition, arcs);
+		arcSource = Arrays.copyOf(arcSource, arcs);
+		arcNext = Arrays.copyOf(arcNext, arcs);
+	    }
+	int arc = arcCount++;
+	arcTransition[arc] = i;
+	arcSource[arc] = source;
+	arcNext[arc] = nodeArc[node];
+	nodeArc[node] = arc;
+    }
+
+    /**
+     * The node of the frontier being built for target and row, made now if
+     * there isn't one yet.
+     */
+    private int findNode(long target, int row)
+    {
+	boolean inTransitions = target >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START;
+	int index = LookupEngine.pivot(target);
+	int first = levelNode[symbolCount];
+	if (2*(nodeCount - first + 1) > slotNodes.length)
+	    { growSlots(first); }
+	int mask = slotNodes.length - 1;
+	int slot = slot(index, row) & mask;
+	while (slotStamps[slot] == stamp)
+	    {
+		int node = slotNodes[slot];
+		if (nodeIndex[node] == index && nodeFlagRow[node] == row &&
+		    nodeInTransitions[node] == inTransitions)
+		    { return node; }
+		slot = (slot + 1) & mask;
+	    }
+	if (nodeCount == nodeIndex.length)
+	    {
+		int nodes = nodeCount*2;
+		nodeIndex = Arrays.copyOf(nodeIndex, nodes);
+		nodeInTransitions = Arrays.copyOf(nodeInTransitions, nodes);
+		nodeFlagRow = Arrays.copyOf(nodeFlagRow, nodes);
+		nodeWeight = Arrays.copyOf(nodeWeight, nodes);
+		nodeArc = Arrays.copyOf(nodeArc, nodes);
+		nodeDepth = Arrays.copyOf(nodeDepth, nodes);
+	    }
+	int node = nodeCount++;
+	nodeIndex[node] = index;
+	nodeInTransitions[node] = inTransitions;
+	nodeFlagRow[node] = row;
+	nodeArc[node] = -1;
+	nodeDepth[node] = Integer.MAX_VALUE;
+	slotNodes[slot] = node;
+	slotStamps[slot] = stamp;
+	return node;
+    }
+
+    private static int slot(int index, int row)
+    { return (index*31 + row)*0x9e3779b1 >>> 8; }
+
+    /**
+     * Doubles the slots and puts the nodes of the frontier being built,
+     * from first on, back into them.
+     */
+    private void growSlots(int first)
+    {
+	slotNodes = new int[slotNodes.length*2];
+	slotStamps = new int[slotNodes.length];
+	int mask = slotNodes.length - 1;
+	for (int node = first; node < nodeCount; ++node)
+	    {
+		int slot = slot(nodeIndex[node], nodeFlagRow[node]) & mask;
+		while (slotStamps[slot] == stamp)
+		    { slot = (slot + 1) & mask; }
+		slotNodes[slot] = node;
+		slotStamps[slot] = stamp;
+	    }
+    }
+
+    /**
+     * Puts a path on the heap that has got back to node, leaving it by arc
+     * for the path next, or that ends at node if arc is -1.
+     */
+    private void addPath(int node, int arc, int next, int length, float weight)
+    {
+	if (pathCount == pathNode.length)
+	    {
+		int paths = pathCount*2;
+		pathNode = Arrays.copyOf(pathNode, paths);
+		pathArc = Arrays.copyOf(pathArc, paths);
+		pathNext = Arrays.copyOf(pathNext, paths);
+		pathLength = Arrays.copyOf(pathLength, paths);
+		pathWeight = Arrays.copyOf(pathWeight, paths);
+		heap = Arrays.copyOf(heap, paths);
+	    }
+	int path = pathCount++;
+	pathNode[path] = node;
+	pathArc[path] = arc;
+	pathNext[path] = next;
+	pathLength[path] = length;
+	pathWeight[path] = weight;
+	// sift up
+	int at = heapSize++;
+	while (at > 0)
+	    {
+		int up = (at - 1) >>> 1;
+		if (!before(path, heap[up]))
+		    { break; }
+		heap[at] = heap[up];
+		at = up;
+	    }
+	heap[at] = path;
+    }
+
+    /**
+     * Takes the lightest path off the heap.
+     */
+    private int poll()
+    {
+	int first = heap[0];
+	int last = heap[--heapSize];
+	int at = 0;
+	while (true)
+	    {
+		int child = 2*at + 1;
+		if (child >= heapSize)
+		    { break; }
+		if (child + 1 < heapSize && before(heap[child + 1], heap[child]))
+		    { ++child; }
+		if (!before(heap[child], last))
+		    { break; }
+		heap[at] = heap[child];
+		at = child;
+	    }
+	if (heapSize > 0)
+	    { heap[at] = last; }
+	return first;
+    }
+
+    /**
+     * Whether path a comes off the heap before path b: the one whose whole
+     * path is lighter does, and of equal weights the older one.
+     */
+    private boolean before(int a, int b)
+    {
+	float wa = nodeWeight[pathNode[a]] + pathWeight[a];
+	float wb = nodeWeight[pathNode[b]] + pathWeight[b];
+	if (wa != wb)
+	    { return wa < wb; }
+	return a < b;
+    }
+}
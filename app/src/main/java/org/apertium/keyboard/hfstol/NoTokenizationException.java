@@ -1,6 +1,8 @@
 package org.apertium.keyboard.hfstol;
 
 public class NoTokenizationException extends Exception {
+    private static final long serialVersionUID = 1L;
+
     String attempted;
     public NoTokenizationException(String str)
 	{
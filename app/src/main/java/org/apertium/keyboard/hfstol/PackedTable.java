@@ -0,0 +1,310 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * An index or transition table as stored in a CompactTransducer file, read
+ * in place. Symbols take one byte each when the alphabet allows, weights
+ * are numbers in a codebook of the distinct weights, and targets are
+ * bit-packed in blocks of BLOCK entries, each block storing the smallest
+ * of its targets and then every target as the difference from it in just
+ * as many bits as the block needs. Any entry can still be read directly.
+ *
+ * A section is, little-endian and with each part starting on an 8-byte
+ * boundary:
+ *   entry count, symbol width, weight width and length of the packed bits
+ *   input symbols, then output symbols and weights of transitions
+ *   the base, the byte offset and the bit width of each block
+ *   the packed bits, followed by 8 bytes of padding
+ *
+ * Targets are packed as codes. A transition target t is 2t, or 2(t - 2^31)
+ * + 1 if it points into the transition table, so that targets in either
+ * table come out small. An index entry's code is 0 if the entry is empty,
+ * 1 + 2k if it is final with weight k in the codebook, and 2 + 2 times the
+ * code of its target otherwise.
+ */
+class PackedTable implements TableLayout
+{
+    static final int BLOCK = 16;
+
+    private final ByteBuffer table;
+    private final boolean transitions;
+    private final int count;
+    private final int symbolWidth;
+    private final int weightWidth;
+    private final int[] codebook;
+    private final int outputsAt;
+    private final int weightsAt;
+    private final int basesAt;
+    private final int offsetsAt;
+    private final int widthsAt;
+    private final int bitsAt;
+
+    /**
+     * Reads the section at buffer's position, leaving buffer after it.
+     *
+     * @param transitions whether the section is a transition table, which
+     * has outputs and, if weightWidth isn't 0, weights
+     */
+    PackedTable(ByteBuffer buffer, boolean transitions, int[] codebook)
+    {
+	this.transitions = transitions;
+	ByteBuffer head = buffer.duplicate();
+	head.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+	count = head.getInt();
+	symbolWidth = head.getInt();
+	weightWidth = head.getInt();
+	int packedBytes = head.getInt();
+	this.codebook = codebook;
+	int blocks = (count + BLOCK - 1) / BLOCK;
+	int at = 16;
+	at = align(at + count*symbolWidth);
+	outputsAt = at;
+	if (transitions)
+	    {
+		at = align(at + count*symbolWidth);
+		weightsAt = at;
+		at = align(at + count*weightWidth);
+	    }
+	else
+	    { weightsAt = at; }
+	basesAt = at;
+	offsetsAt = basesAt + blocks*8;
+	widthsAt = align(offsetsAt + blocks*4);
+	bitsAt = align(widthsAt + blocks);
+	table = Transducer.sliceTable(buffer, align(bitsAt + packedBytes + 8));
+    }
+
+    public int size()
+    { return count; }
+
+    /** The bytes of the section, if it is on the heap rather than mapped. */
+    public long getHeapBytes()
+    { return table.isDirect() ? 0 : table.capacity(); }
+
+    public int getInput(int i)
+    { return symbol(16 + i*symbolWidth); }
+
+    public int getOutput(int i)
+    { return symbol(outputsAt + i*symbolWidth); }
+
+    public float getWeight(int i)
+    {
+	int at = weightsAt + i*weightWidth;
+	switch (weightWidth)
+	    {
+	    case 0:
+		return 0.0f;
+	    case 1:
+		return Float.intBitsToFloat(codebook[table.get(at) & 0xFF]);
+	    case 2:
+		return Float.intBitsToFloat(codebook[table.getShort(at) & 0xFFFF]);
+	    default:
+		return table.getFloat(at);
+	    }
+    }
+
+    public long getTarget(int i)
+    {
+	long code = code(i);
+	if (transitions)
+	    { return target(code); }
+	if (code == 0)
+	    { return HfstOptimizedLookup.NO_TABLE_INDEX; }
+	if ((code & 1) != 0)
+	    { return codebook[(int) (code >>> 1)] & 0xFFFFFFFFL; }
+	return target((code - 2) >>> 1);
+    }
+
+    private int symbol(int at)
+    {
+	if (symbolWidth == 2)
+	    { return table.getShort(at) & 0xFFFF; }
+	int symbol = table.get(at) & 0xFF;
+	return symbol == 0xFF ? HfstOptimizedLookup.NO_SYMBOL_NUMBER : symbol;
+    }
+
+    private long code(int i)
+    {
+	int block = i / BLOCK;
+	int width = table.get(widthsAt + block);
+	long base = table.getLong(basesAt + block*8);
+	if (width == 0)
+	    { return base; }
+	int bit = (i % BLOCK)*width;
+	long bits = table.getLong(bitsAt + table.getInt(offsetsAt + block*4) + (bit >>> 3));
+	return base + ((bits >>> (bit & 7)) & ((1L << width) - 1));
+    }
+
+    private static long target(long code)
+    {
+	if ((code & 1) != 0)
+	    { return HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START + (code >>> 1); }
+	return code >>> 1;
+    }
+
+    private static long targetCode(long target)
+    {
+	if (target >= HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START)
+	    { return (target - HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START)*2 + 1; }
+	return target*2;
+    }
+
+    private static int align(int at)
+    { return (at + 7) & ~7; }
+
+    /**
+     * Writes indices as a section.
+     *
+     * @param codebook the number of each weight in the codebook, by its bits
+     */
+    static void write(TransducerSnapshot.Output out, IndexTable indices, int symbolWidth,
+		      Map<Integer, Integer> codebook) throws IOException
+    {
+	int count = indices.size();
+	int[] inputs = new int[count];
+	long[] codes = new long[count];
+	for (int i = 0; i < count; ++i)
+	    {
+		inputs[i] = indices.getInput(i);
+		long target = indices.getTarget(i);
+		if (inputs[i] != HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+		    { codes[i] = 2 + 2*targetCode(target); }
+		else if (target == HfstOptimizedLookup.NO_TABLE_INDEX)
+		    { codes[i] = 0; }
+		else
+		    { codes[i] = 1 + 2L*codebook.get((int) target); }
+	    }
+	write(out, inputs, null, null, 0, codes, symbolWidth);
+    }
+
+    /**
+     * Writes transitions as a section, with weights taking weightWidth
+     * bytes: 1 or 2 for a number in the codebook, 4 for the weight itself,
+     * or 0 for none.
+     */
+    static void write(TransducerSnapshot.Output out, TransitionTable transitions, int symbolWidth,
+		      int weightWidth, Map<Integer, Integer> codebook) throws IOException
+    {
+	int count = transitions.size();
+	int[] inputs = new int[count];
+	int[] outputs = new int[count];
+	int[] weights = new int[count];
+	long[] codes = new long[count];
+	for (int i = 0; i < count; ++i)
+	    {
+		inputs[i] = transitions.getInput(i);
+		outputs[i] = transitions.getOutput(i);
+		int bits = Float.floatToRawIntBits(transitions.getWeight(i));
+		weights[i] = weightWidth == 4 ? bits : weightWidth == 0 ? 0 : codebook.get(bits);
+		codes[i] = targetCode(transitions.getTarget(i));
+	    }
+	write(out, inputs, outputs, weights, weightWidth, codes, symbolWidth);
+    }
+
+    private static void write(TransducerSnapshot.Output out, int[] inputs, int[] outputs,
+			      int[] weights, int weightWidth, long[] codes, int symbolWidth)
+	throws IOException
+    {
+	int count = inputs.length;
+	int blocks = (count + BLOCK - 1) / BLOCK;
+	long[] bases = new long[blocks];
+	byte[] widths = new byte[blocks];
+	int[] offsets = new int[blocks];
+	long packedBytes = 0;
+	for (int block = 0; block < blocks; ++block)
+	    {
+		long least = Long.MAX_VALUE;
+		long most = 0;
+		for (int i = block*BLOCK; i < Math.min(count, (block + 1)*BLOCK); ++i)
+		    {
+			least = Math.min(least, codes[i]);
+			most = Math.max(most, codes[i]);
+		    }
+		bases[block] = least;
+		widths[block] = (byte) (64 - Long.numberOfLeadingZeros(most - least));
+		offsets[block] = (int) packedBytes;
+		packedBytes += (BLOCK*widths[block] + 7) / 8;
+	    }
+	// a section is read through a single buffer
+	long columns = (long) count*symbolWidth*(outputs != null ? 2 : 1) + (long) count*weightWidth;
+	if (columns + blocks*13L + packedBytes + 64 > Integer.MAX_VALUE)
+	    { throw new IOException("Table is too big for the compact format"); }
+	out.reserve(16);
+	out.buffer.putInt(count);
+	out.buffer.putInt(symbolWidth);
+	out.buffer.putInt(weightWidth);
+	out.buffer.putInt((int) packedBytes);
+	writeSymbols(out, inputs, symbolWidth);
+	out.align();
+	if (outputs != null)
+	    {
+		writeSymbols(out, outputs, symbolWidth);
+		out.align();
+		for (int weight : weights)
+		    {
+			out.reserve(4);
+			if (weightWidth == 1)
+			    { out.buffer.put((byte) weight); }
+			else if (weightWidth == 2)
+			    { out.buffer.putShort((short) weight); }
+			else if (weightWidth == 4)
+			    { out.buffer.putInt(weight); }
+		    }
+		out.align();
+	    }
+	for (long base : bases)
+	    {
+		out.reserve(8);
+		out.buffer.putLong(base);
+	    }
+	for (int offset : offsets)
+	    {
+		out.reserve(4);
+		out.buffer.putInt(offset);
+	    }
+	out.align();
+	for (byte width : widths)
+	    {
+		out.reserve(1);
+		out.buffer.put(width);
+	    }
+	out.align();
+	byte[] packed = new byte[BLOCK*8];
+	for (int block = 0; block < blocks; ++block)
+	    {
+		int width = widths[block];
+		int length = (BLOCK*width + 7) / 8;
+		java.util.Arrays.fill(packed, 0, length, (byte) 0);
+		for (int i = block*BLOCK, bit = 0; i < Math.min(count, (block + 1)*BLOCK); ++i, bit += width)
+		    {
+			long value = codes[i] - bases[block];
+			for (int b = 0; b < width; ++b)
+			    {
+				if ((value >>> b & 1) != 0)
+				    { packed[(bit + b) >>> 3] |= 1 << ((bit + b) & 7); }
+			    }
+		    }
+		out.reserve(length);
+		out.buffer.put(packed, 0, length);
+	    }
+	out.reserve(8);
+	out.buffer.putLong(0);
+	out.align();
+    }
+
+    private static void writeSymbols(TransducerSnapshot.Output out, int[] symbols, int width)
+	throws IOException
+    {
+	for (int symbol : symbols)
+	    {
+		out.reserve(2);
+		if (width == 2)
+		    { out.buffer.putShort((short) symbol); }
+		else
+		    { out.buffer.put((byte) (symbol == HfstOptimizedLookup.NO_SYMBOL_NUMBER ? 0xFF : symbol)); }
+	    }
+    }
+}
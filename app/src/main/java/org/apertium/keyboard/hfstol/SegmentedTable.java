@@ -0,0 +1,79 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A table of fixed-size entries mapped from a file in several segments,
+ * for tables too big for the one buffer a single mapping gives. Every
+ * segment holds a whole number of entries, so no entry is split between
+ * two, and an entry is found from its position with a shift and a mask.
+ * Byte offsets into the file are longs; positions of entries are ints, as
+ * the hfstol format can't address more than 2^31 entries of either table.
+ */
+class SegmentedTable implements TableLayout
+{
+    /** Each segment holds 2^SEGMENT_SHIFT entries, the last one fewer. */
+    static final int SEGMENT_SHIFT = 26;
+
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final ByteBuffer[] segments;
+    private final int entrySize;
+    private final int targetAt;
+    private final int count;
+
+    /**
+     * Maps count entries, laid out as BufferTable reads them, starting at
+     * offset in channel.
+     */
+    SegmentedTable(FileChannel channel, long offset, int count,
+		   boolean transitions, boolean weighted) throws IOException
+    {
+	entrySize = !transitions ? 6 : weighted ? 12 : 8;
+	targetAt = transitions ? 4 : 2;
+	this.count = count;
+	segments = new ByteBuffer[(int) (((long) count + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+	for (int s = 0; s < segments.length; ++s)
+	    {
+		long first = (long) s << SEGMENT_SHIFT;
+		long entries = Math.min(count - first, 1L << SEGMENT_SHIFT);
+		segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+					  offset + first*entrySize, entries*entrySize);
+		segments[s].order(ByteOrder.LITTLE_ENDIAN);
+	    }
+    }
+
+    public int size()
+    { return count; }
+
+    public int getInput(int i)
+    {
+	return segments[i >>> SEGMENT_SHIFT]
+	    .getShort((i & SEGMENT_MASK)*entrySize) & 0xFFFF;
+    }
+
+    public int getOutput(int i)
+    {
+	return segments[i >>> SEGMENT_SHIFT]
+	    .getShort((i & SEGMENT_MASK)*entrySize + 2) & 0xFFFF;
+    }
+
+    public long getTarget(int i)
+    {
+	return segments[i >>> SEGMENT_SHIFT]
+	    .getInt((i & SEGMENT_MASK)*entrySize + targetAt) & 0xFFFFFFFFL;
+    }
+
+    public float getWeight(int i)
+    {
+	if (entrySize != 12)
+	    { return 0.0f; }
+	return segments[i >>> SEGMENT_SHIFT].getFloat((i & SEGMENT_MASK)*entrySize + 8);
+    }
+
+    public long getHeapBytes()
+    { return 0; }
+}
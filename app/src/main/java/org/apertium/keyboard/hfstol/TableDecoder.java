@@ -0,0 +1,96 @@
+package org.apertium.keyboard.hfstol;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes index or transition entries from their raw little-endian bytes
+ * into the primitive arrays of an IndexTable or TransitionTable. Run in a
+ * ForkJoinPool, the entries are split into slices decoded in parallel;
+ * decode() does them all in the calling thread.
+ */
+class TableDecoder extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Entries decoded by one task. */
+    private static final int SLICE = 1 << 14;
+
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int entrySize;
+    private final int start;
+    private final int end;
+    private final char[] inputs;
+    /** Null for index entries, which have no output. */
+    private final char[] outputs;
+    private final int[] targets;
+    /** Null for index and unweighted entries. */
+    private final float[] weights;
+
+    /**
+     * A decoder for index entries.
+     */
+    TableDecoder(ByteBuffer bytes, int offset, char[] inputs, int[] targets)
+    { this(bytes, offset, 6, 0, inputs.length, inputs, null, targets, null); }
+
+    /**
+     * A decoder for transitions, weighted if weights isn't null.
+     */
+    TableDecoder(ByteBuffer bytes, int offset,
+		 char[] inputs, char[] outputs, int[] targets, float[] weights)
+    {
+	this(bytes, offset, weights == null ? 8 : 12, 0, inputs.length,
+	     inputs, outputs, targets, weights);
+    }
+
+    private TableDecoder(ByteBuffer bytes, int offset, int entrySize, int start, int end,
+			 char[] inputs, char[] outputs, int[] targets, float[] weights)
+    {
+	this.bytes = bytes;
+	this.offset = offset;
+	this.entrySize = entrySize;
+	this.start = start;
+	this.end = end;
+	this.inputs = inputs;
+	this.outputs = outputs;
+	this.targets = targets;
+	this.weights = weights;
+    }
+
+    @Override
+    protected void compute()
+    {
+	if (end - start > SLICE)
+	    {
+		int middle = (start + end) >>> 1;
+		invokeAll(new TableDecoder(bytes, offset, entrySize, start, middle,
+					   inputs, outputs, targets, weights),
+			  new TableDecoder(bytes, offset, entrySize, middle, end,
+					   inputs, outputs, targets, weights));
+		return;
+	    }
+	decode();
+    }
+
+    /**
+     * Decodes this decoder's entries in the calling thread.
+     */
+    void decode()
+    {
+	// each task reads through its own view, with its own byte order
+	ByteBuffer b = bytes.duplicate();
+	b.order(ByteOrder.LITTLE_ENDIAN);
+	int targetOffset = outputs == null ? 2 : 4;
+	for (int i = start, pos = offset + start*entrySize; i < end; ++i, pos += entrySize)
+	    {
+		inputs[i] = b.getChar(pos);
+		if (outputs != null)
+		    { outputs[i] = b.getChar(pos + 2); }
+		targets[i] = b.getInt(pos + targetOffset);
+		if (weights != null)
+		    { weights[i] = b.getFloat(pos + 8); }
+	    }
+    }
+}
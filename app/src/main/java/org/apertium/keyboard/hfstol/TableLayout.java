@@ -0,0 +1,24 @@
+package org.apertium.keyboard.hfstol;
+
+/**
+ * Where the entries of an IndexTable or TransitionTable are kept, with one
+ * implementation for each way of keeping them: decoded arrays, a buffer
+ * read in place, a compact file, or the segments of a big mapping. Index
+ * entries have no outputs or weights, and unweighted transitions have
+ * weights of zero.
+ */
+interface TableLayout
+{
+    int size();
+
+    int getInput(int i);
+
+    int getOutput(int i);
+
+    long getTarget(int i);
+
+    float getWeight(int i);
+
+    /** The bytes the entries take on the heap; 0 when they are mapped. */
+    long getHeapBytes();
+}
@@ -0,0 +1,189 @@
+package org.apertium.keyboard.hfstol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Splits text into input symbols, always taking the longest symbol that
+ * matches. Characters below DIRECT_RANGE that are symbols by themselves,
+ * and don't begin any longer symbol, are looked up directly in a table.
+ * Everything else goes through a trie whose nodes are numbered breadth
+ * first, so that the children of each node are a sorted run of entries in
+ * flat arrays and are found by binary search.
+ *
+ * A tokenizer is built once and never changed, and works on any
+ * CharSequence without allocating, so it can be shared between threads.
+ */
+public class Tokenizer
+{
+    /** Characters below this are looked up directly. */
+    public static final int DIRECT_RANGE = 0x800;
+
+    private static final char NO_SYMBOL = (char) HfstOptimizedLookup.NO_SYMBOL_NUMBER;
+
+    /** The symbol of each character, or NO_SYMBOL to go through the trie. */
+    final char[] direct;
+    /** The character leading to each trie node; node 0 is the root. */
+    final char[] labels;
+    /** The symbol ending at each trie node, or NO_SYMBOL. */
+    final char[] symbols;
+    /** The children of node i are the nodes from firstChild[i] up to firstChild[i + 1]. */
+    final int[] firstChild;
+    private final int[] lengths;
+    private final int longest;
+
+    /**
+     * Builds a tokenizer for the first inputSymbols symbols of a.
+     */
+    public Tokenizer(TransducerAlphabet a, int inputSymbols)
+    {
+	Node root = new Node();
+	for (int i = 0; i < inputSymbols; ++i)
+	    {
+		String key = a.keyTable.get(i);
+		if (key.length() == 0)
+		    { continue; }
+		Node node = root;
+		for (int pos = 0; pos < key.length(); ++pos)
+		    {
+			Node child = node.children.get(key.charAt(pos));
+			if (child == null)
+			    {
+				child = new Node();
+				node.children.put(key.charAt(pos), child);
+			    }
+			node = child;
+		    }
+		node.symbol = (char) i;
+	    }
+	// number the nodes breadth first
+	ArrayList<Node> nodes = new ArrayList<Node>();
+	ArrayList<Character> nodeLabels = new ArrayList<Character>();
+	nodes.add(root);
+	nodeLabels.add((char) 0);
+	int[] first = new int[16];
+	for (int i = 0; i < nodes.size(); ++i)
+	    {
+		if (i + 2 > first.length)
+		    { first = Arrays.copyOf(first, first.length*2); }
+		first[i] = nodes.size();
+		for (Map.Entry<Character, Node> entry : nodes.get(i).children.entrySet())
+		    {
+			nodes.add(entry.getValue());
+			nodeLabels.add(entry.getKey());
+		    }
+	    }
+	int count = nodes.size();
+	first[count] = count;
+	firstChild = Arrays.copyOf(first, count + 1);
+	labels = new char[count];
+	symbols = new char[count];
+	for (int i = 0; i < count; ++i)
+	    {
+		labels[i] = nodeLabels.get(i);
+		symbols[i] = nodes.get(i).symbol;
+	    }
+	direct = new char[DIRECT_RANGE];
+	Arrays.fill(direct, NO_SYMBOL);
+	for (int child = firstChild[0]; child < firstChild[1]; ++child)
+	    {
+		if (labels[child] < DIRECT_RANGE && firstChild[child] == firstChild[child + 1])
+		    { direct[labels[child]] = symbols[child]; }
+	    }
+	lengths = symbolLengths(a);
+	longest = longestOf(lengths, inputSymbols);
+    }
+
+    /**
+     * Puts together a tokenizer from tables stored in a TransducerSnapshot.
+     */
+    Tokenizer(TransducerAlphabet a, int inputSymbols,
+	      char[] direct, char[] labels, char[] symbols, int[] firstChild)
+    {
+	this.direct = direct;
+	this.labels = labels;
+	this.symbols = symbols;
+	this.firstChild = firstChild;
+	lengths = symbolLengths(a);
+	longest = longestOf(lengths, inputSymbols);
+    }
+
+    /**
+     * The longest symbol that matches text from start on, looking no
+     * further than limit.
+     *
+     * @return the symbol number, or NO_SYMBOL_NUMBER if none matches
+     */
+    public int find(CharSequence text, int start, int limit)
+    {
+	if (start >= limit)
+	    { return HfstOptimizedLookup.NO_SYMBOL_NUMBER; }
+	char c = text.charAt(start);
+	if (c < DIRECT_RANGE && direct[c] != NO_SYMBOL)
+	    { return direct[c]; }
+	int node = 0;
+	char best = NO_SYMBOL;
+	for (int pos = start; pos < limit; ++pos)
+	    {
+		node = child(node, text.charAt(pos));
+		if (node < 0)
+		    { break; }
+		if (symbols[node] != NO_SYMBOL)
+		    { best = symbols[node]; }
+	    }
+	return best;
+    }
+
+    /**
+     * The number of characters in symbol.
+     */
+    public int getLength(int symbol)
+    { return lengths[symbol]; }
+
+    /**
+     * The most characters in any input symbol.
+     */
+    public int getLongestSymbol()
+    { return longest; }
+
+    private int child(int node, char c)
+    {
+	int low = firstChild[node];
+	int high = firstChild[node + 1] - 1;
+	while (low <= high)
+	    {
+		int middle = (low + high) >>> 1;
+		if (labels[middle] < c)
+		    { low = middle + 1; }
+		else if (labels[middle] > c)
+		    { high = middle - 1; }
+		else
+		    { return middle; }
+	    }
+	return -1;
+    }
+
+    private static int[] symbolLengths(TransducerAlphabet a)
+    {
+	int[] lengths = new int[a.keyTable.size()];
+	for (int i = 0; i < lengths.length; ++i)
+	    { lengths[i] = a.keyTable.get(i).length(); }
+	return lengths;
+    }
+
+    private static int longestOf(int[] lengths, int inputSymbols)
+    {
+	int longest = 1;
+	for (int i = 0; i < inputSymbols && i < lengths.length; ++i)
+	    { longest = Math.max(longest, lengths[i]); }
+	return longest;
+    }
+
+    private static class Node
+    {
+	TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+	char symbol = NO_SYMBOL;
+    }
+}
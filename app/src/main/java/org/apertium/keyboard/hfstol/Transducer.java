@@ -1,7 +1,203 @@
 package org.apertium.keyboard.hfstol;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * A loaded transducer. Its tables are never changed after construction, so
+ * one instance can be shared by any number of threads; everything a lookup
+ * changes lives in a LookupEngine. analyze borrows an engine from a small
+ * pool kept by the transducer for the length of one lookup, so the engines
+ * go when the transducer does; callers that look up a lot on threads of
+ * their own can keep an engine each from newLookupEngine instead.
+ */
 public abstract class Transducer {
+    protected final TransducerHeader header;
+    protected final TransducerAlphabet alphabet;
+    protected final IndexTable indexTable;
+    protected final TransitionTable transitionTable;
+    protected final Tokenizer tokenizer;
+    private final LookupEngine[] engines =
+	new LookupEngine[Runtime.getRuntime().availableProcessors()];
+    private int idleEngines;
+    private volatile EpsilonClosure closure;
+
+    protected Transducer(TransducerHeader h, TransducerAlphabet a,
+			 IndexTable indices, TransitionTable transitions,
+			 Tokenizer t)
+    {
+	header = h;
+	alphabet = a;
+	indexTable = indices;
+	transitionTable = transitions;
+	tokenizer = t;
+    }
+
     abstract Collection<String> analyze(String str) throws NoTokenizationException;
+
+    /**
+     * Analyzes every string of inputs, spreading the work over the threads
+     * of pool. Each worker borrows an engine for each input it looks up.
+     *
+     * @return the analyses of each input, in the same order as inputs, with
+     * null in place of inputs that couldn't be tokenized
+     */
+    public List<Collection<String>> analyzeAll(List<String> inputs, ForkJoinPool pool)
+    {
+	// each task sets its own range of slots, and invoke returns only once
+	// every task is done, so the list needs no locking
+	List<Collection<String>> analyses = new ArrayList<Collection<String>>(
+	    Collections.<Collection<String>>nCopies(inputs.size(), null));
+	pool.invoke(new BatchTask(inputs, analyses, 0, inputs.size()));
+	return analyses;
+    }
+
+    /**
+     * An idle engine from the pool, or a new one if none is idle. It
+     * belongs to the caller until it is given back with releaseEngine.
+     */
+    LookupEngine borrowEngine()
+    {
+	synchronized (engines)
+	    {
+		if (idleEngines > 0)
+		    {
+			LookupEngine engine = engines[--idleEngines];
+			engines[idleEngines] = null;
+			return engine;
+		    }
+	    }
+	return new LookupEngine(this);
+    }
+
+    /**
+     * Gives back an engine from borrowEngine, which keeps it for the next
+     * lookup unless the pool is full. The caller must be done with its
+     * results.
+     */
+    void releaseEngine(LookupEngine engine)
+    {
+	synchronized (engines)
+	    {
+		if (idleEngines < engines.length)
+		    { engines[idleEngines++] = engine; }
+	    }
+    }
+
+    /**
+     * A new engine for this transducer, for callers that manage their own
+     * engines, e.g. one per worker in a pool.
+     */
+    public LookupEngine newLookupEngine()
+    { return new LookupEngine(this); }
+
+    /**
+     * Works out the epsilon closures of the states, for lookups to use from
+     * then on, if the header says there are input epsilons. Best done right
+     * after loading, since engines only pick the closures up on their next
+     * lookup.
+     *
+     * @param maxBytes a cap on the memory the closures may take
+     * @return whether closures were computed
+     */
+    public boolean precomputeEpsilonClosure(long maxBytes)
+    {
+	closure = EpsilonClosure.compute(this, maxBytes);
+	return closure != null;
+    }
+
+    /**
+     * The epsilon closures of the states, or null if they haven't been
+     * worked out.
+     */
+    public EpsilonClosure getEpsilonClosure()
+    { return closure; }
+
+    public TransducerHeader getHeader()
+    { return header; }
+
+    public TransducerAlphabet getAlphabet()
+    { return alphabet; }
+
+    public IndexTable getIndexTable()
+    { return indexTable; }
+
+    public TransitionTable getTransitionTable()
+    { return transitionTable; }
+
+    public Tokenizer getTokenizer()
+    { return tokenizer; }
+
+    /**
+     * An estimate of the heap taken by the decoded tables and the epsilon
+     * closures, leaving out the alphabet and anything read in place from a
+     * mapped file.
+     */
+    public long getHeapBytes()
+    {
+	EpsilonClosure c = closure;
+	return indexTable.getHeapBytes() + transitionTable.getHeapBytes()
+	    + (c != null ? c.getBytes() : 0);
+    }
+
+    /**
+     * Returns a little-endian view of the next length bytes of buffer and
+     * moves the buffer's position past them. Nothing is copied.
+     */
+    static ByteBuffer sliceTable(ByteBuffer buffer, int length)
+    {
+	ByteBuffer table = buffer.slice();
+	table.limit(length);
+	table.order(ByteOrder.LITTLE_ENDIAN);
+	buffer.position(buffer.position() + length);
+	return table;
+    }
+
+    /**
+     * Analyzes the inputs from start to end, splitting the range in two
+     * until it's small enough for one task.
+     */
+    private class BatchTask extends RecursiveAction
+    {
+	private static final long serialVersionUID = 1L;
+	private static final int BATCH_SIZE = 256;
+
+	private final List<String> inputs;
+	private final List<Collection<String>> analyses;
+	private final int start;
+	private final int end;
+
+	BatchTask(List<String> inputs, List<Collection<String>> analyses, int start, int end)
+	{
+	    this.inputs = inputs;
+	    this.analyses = analyses;
+	    this.start = start;
+	    this.end = end;
+	}
+
+	@Override
+	protected void compute()
+	{
+	    if (end - start > BATCH_SIZE)
+		{
+		    int middle = (start + end) >>> 1;
+		    invokeAll(new BatchTask(inputs, analyses, start, middle),
+			      new BatchTask(inputs, analyses, middle, end));
+		    return;
+		}
+	    for (int i = start; i < end; ++i)
+		{
+		    try
+			{ analyses.set(i, analyze(inputs.get(i))); }
+		    catch (NoTokenizationException e)
+			{ analyses.set(i, null); }
+		}
+	}
+    }
 }
@@ -1,6 +1,7 @@
 package org.apertium.keyboard.hfstol;
 
 import java.io.DataInputStream;
+import java.nio.ByteBuffer;
 import java.util.Vector;
 import java.util.Hashtable;
 
@@ -13,16 +14,24 @@ public class TransducerAlphabet
     public Vector<String> keyTable;
     public Hashtable<Integer, FlagDiacriticOperation> operations;
     public Integer features;
+    /**
+     * The same operations as in operations, indexed by symbol number, with
+     * null for symbols that aren't flag diacritics.
+     */
+    public FlagDiacriticOperation[] flagOperations;
+    /**
+     * The characters of each symbol, indexed by symbol number, for spelling
+     * out results without going through keyTable.
+     */
+    public char[][] symbolChars;
+    private Hashtable<String, Integer> feature_bucket;
+    private Hashtable<String, Integer> value_bucket;
+    private Integer values;
+
     public TransducerAlphabet(DataInputStream charstream,
 		    int number_of_symbols) throws java.io.IOException
     {
-	keyTable = new Vector<String>();
-	operations = new Hashtable<Integer, FlagDiacriticOperation>();
-	Hashtable<String, Integer> feature_bucket = new Hashtable<String, Integer>();
-	Hashtable<String, Integer> value_bucket = new Hashtable<String, Integer>();
-	features = 0;
-	Integer values = 1;
-	value_bucket.put("", 0); // neutral value
+	this();
 	int i = 0;
 	int charindex;
 	byte[] chars = new byte[1000]; // FIXME magic number
@@ -35,60 +44,132 @@ public class TransducerAlphabet
 			++charindex;
 			chars[charindex] = charstream.readByte();
 		    }
-		String ustring = new String(chars, 0, charindex, "UTF-8");
-		if (ustring.length() > 5 && ustring.charAt(0) == '@' && ustring.charAt(ustring.length()-1) == '@' && ustring.charAt(2) == '.')
-		    { // flag diacritic identified
-			HfstOptimizedLookup.FlagDiacriticOperator op;
-			String[] parts = ustring.substring(1,ustring.length()-1).split("\\.");
-			/* Not a flag diacritic after all, ignore it */
-			if (parts.length < 2) {
-			    keyTable.add("");
-			    i++;
-			    continue;
-			}
-			String ops = parts[0];
-			String feats = parts[1];
-			String vals;
-			if (parts.length == 3) {
-			    vals = parts[2];
-			} else {
-			    vals = "";
-			}
-			if (ops.equals("P")) {
-			    op = HfstOptimizedLookup.FlagDiacriticOperator.P;
-			} else if (ops.equals("N")) {
-			    op = HfstOptimizedLookup.FlagDiacriticOperator.N;
-			} else if (ops.equals("R")) {
-				op = HfstOptimizedLookup.FlagDiacriticOperator.R;
-			} else if (ops.equals("D")) {
-			    op = HfstOptimizedLookup.FlagDiacriticOperator.D;
-			} else if (ops.equals("C")) {
-			    op = HfstOptimizedLookup.FlagDiacriticOperator.C;
-			} else if (ops.equals("U")) {
-			    op = HfstOptimizedLookup.FlagDiacriticOperator.U;
-			} else { // Not a valid operator, ignore the operation
-			    keyTable.add("");
-			    i++;
-			    continue;
-			}
-			if (value_bucket.containsKey(vals) == false) {
-				value_bucket.put(vals, values);
-				values++;
-			    }
-			if (feature_bucket.containsKey(feats) == false) {
-			    feature_bucket.put(feats, features);
-			    features++;
-			}
-			operations.put(i, new FlagDiacriticOperation(op,
-								     feature_bucket.get(feats),
-								     value_bucket.get(vals)));
-			keyTable.add("");
-			i++;
-			continue;
-		    }
-		keyTable.add(ustring);
+		addSymbol(new String(chars, 0, charindex, "UTF-8"));
 		i++;
 	    }
 	keyTable.set(0, ""); // epsilon is zero
+	indexSymbols();
+    }
+
+    /**
+     * Reads the alphabet from buffer, leaving its position just after the
+     * last symbol, where the index table begins.
+     */
+    public TransducerAlphabet(ByteBuffer buffer,
+		    int number_of_symbols) throws java.io.IOException
+    {
+	this();
+	int i = 0;
+	while (i < number_of_symbols)
+	    {
+		int start = buffer.position();
+		while (buffer.get() != 0)
+		    { }
+		byte[] chars = new byte[buffer.position() - start - 1];
+		buffer.position(start);
+		buffer.get(chars);
+		buffer.get(); // the terminating zero
+		addSymbol(new String(chars, "UTF-8"));
+		i++;
+	    }
+	keyTable.set(0, ""); // epsilon is zero
+	indexSymbols();
+    }
+
+    /**
+     * Assembles an alphabet that has already been parsed, as stored in a
+     * TransducerSnapshot.
+     */
+    TransducerAlphabet(Vector<String> keys,
+		       Hashtable<Integer, FlagDiacriticOperation> ops,
+		       int featureCount)
+    {
+	keyTable = keys;
+	operations = ops;
+	features = featureCount;
+	indexSymbols();
+    }
+
+    private TransducerAlphabet()
+    {
+	keyTable = new Vector<String>();
+	operations = new Hashtable<Integer, FlagDiacriticOperation>();
+	feature_bucket = new Hashtable<String, Integer>();
+	value_bucket = new Hashtable<String, Integer>();
+	features = 0;
+	values = 1;
+	value_bucket.put("", 0); // neutral value
+    }
+
+    private void indexSymbols()
+    {
+	flagOperations = new FlagDiacriticOperation[keyTable.size()];
+	for (Integer symbol : operations.keySet())
+	    { flagOperations[symbol] = operations.get(symbol); }
+	symbolChars = new char[keyTable.size()][];
+	for (int i = 0; i < symbolChars.length; ++i)
+	    { symbolChars[i] = keyTable.get(i).toCharArray(); }
+    }
+
+    /**
+     * Whether a symbol looks like a flag diacritic, such as @P.CASE.NOM@.
+     */
+    static boolean isFlagDiacritic(String symbol)
+    {
+	return symbol.length() > 5 && symbol.charAt(0) == '@' &&
+	    symbol.charAt(symbol.length() - 1) == '@' && symbol.charAt(2) == '.';
+    }
+
+    private void addSymbol(String ustring)
+    {
+	int i = keyTable.size();
+	if (isFlagDiacritic(ustring))
+	    { // flag diacritic identified
+		HfstOptimizedLookup.FlagDiacriticOperator op;
+		String[] parts = ustring.substring(1,ustring.length()-1).split("\\.");
+		/* Not a flag diacritic after all, ignore it */
+		if (parts.length < 2) {
+		    keyTable.add("");
+		    return;
+		}
+		String ops = parts[0];
+		String feats = parts[1];
+		String vals;
+		if (parts.length == 3) {
+		    vals = parts[2];
+		} else {
+		    vals = "";
+		}
+		if (ops.equals("P")) {
+		    op = HfstOptimizedLookup.FlagDiacriticOperator.P;
+		} else if (ops.equals("N")) {
+		    op = HfstOptimizedLookup.FlagDiacriticOperator.N;
+		} else if (ops.equals("R")) {
+			op = HfstOptimizedLookup.FlagDiacriticOperator.R;
+		} else if (ops.equals("D")) {
+		    op = HfstOptimizedLookup.FlagDiacriticOperator.D;
+		} else if (ops.equals("C")) {
+		    op = HfstOptimizedLookup.FlagDiacriticOperator.C;
+		} else if (ops.equals("U")) {
+		    op = HfstOptimizedLookup.FlagDiacriticOperator.U;
+		} else { // Not a valid operator, ignore the operation
+		    keyTable.add("");
+		    return;
+		}
+		if (value_bucket.containsKey(vals) == false) {
+			value_bucket.put(vals, values);
+			values++;
+		    }
+		if (feature_bucket.containsKey(feats) == false) {
+		    feature_bucket.put(feats, features);
+		    features++;
+		}
+		operations.put(i, new FlagDiacriticOperation(op,
+							     feature_bucket.get(feats),
+							     value_bucket.get(vals)));
+		keyTable.add("");
+		return;
+	    }
+	keyTable.add(ustring);
     }
 }
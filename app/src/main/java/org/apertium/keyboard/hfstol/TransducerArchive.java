@@ -0,0 +1,322 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Several transducers in one file, one after another, each with the hfst3
+ * header that names it and gives its type, as hfst writes them. Opening an
+ * archive only reads those headers, the hfstol headers after them and the
+ * alphabets, to find where each transducer starts and ends; a transducer is
+ * only loaded when it is first asked for, by mapping its part of the file.
+ * A plain hfstol file without an hfst3 header is an archive of one
+ * transducer with no name.
+ *
+ * Only optimized-lookup transducers can be indexed, since the lengths of
+ * transducers in other formats can't be worked out from their headers.
+ */
+public class TransducerArchive
+{
+    /**
+     * A transducer in the archive, and where it lies.
+     */
+    public static class Entry
+    {
+	private final Map<String, String> properties;
+	private final TransducerHeader header;
+	private final long offset;
+	private final long length;
+	private volatile Transducer transducer;
+
+	Entry(Map<String, String> properties, TransducerHeader header, long offset, long length)
+	{
+	    this.properties = properties;
+	    this.header = header;
+	    this.offset = offset;
+	    this.length = length;
+	}
+
+	/** The name given in the hfst3 header, or null if there is none. */
+	public String getName()
+	{ return properties.get("name"); }
+
+	/**
+	 * A property of the hfst3 header, such as "type" or "version", or
+	 * null if the header doesn't have it.
+	 */
+	public String getProperty(String key)
+	{ return properties.get(key); }
+
+	/** Every property of the hfst3 header, in the order they came. */
+	public Map<String, String> getProperties()
+	{ return Collections.unmodifiableMap(properties); }
+
+	/** The hfstol header, with the sizes and flags of the transducer. */
+	public TransducerHeader getHeader()
+	{ return header; }
+
+	/** Where the transducer's hfst3 header starts in the archive. */
+	public long getOffset()
+	{ return offset; }
+
+	public long getLength()
+	{ return length; }
+
+	/** Whether the transducer has been loaded. */
+	public boolean isLoaded()
+	{ return transducer != null; }
+    }
+
+    private static final int WINDOW = 1 << 16;
+
+    private final FileChannel channel;
+    private final long base;
+    private final ByteBuffer bytes;
+    /** The stream channel came from, kept for as long as the channel is used. */
+    private final FileInputStream stream;
+    /** Whether close closes stream; not if its descriptor is the caller's. */
+    private final boolean ownsStream;
+    private final List<Entry> entries;
+
+    private TransducerArchive(FileChannel channel, long base, long length, ByteBuffer bytes,
+			      FileInputStream stream, boolean ownsStream)
+	throws IOException, FormatException
+    {
+	this.channel = channel;
+	this.base = base;
+	this.bytes = bytes;
+	this.stream = stream;
+	this.ownsStream = ownsStream;
+	entries = Collections.unmodifiableList(index(new Window(length)));
+    }
+
+    /**
+     * Indexes the transducers in file, which stays open until close.
+     */
+    public static TransducerArchive open(File file) throws IOException, FormatException
+    {
+	FileInputStream stream = new FileInputStream(file);
+	try {
+	    return new TransducerArchive(stream.getChannel(), 0, file.length(), null, stream, true);
+	} catch (IOException e) {
+	    stream.close();
+	    throw e;
+	} catch (FormatException e) {
+	    stream.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Indexes the transducers in length bytes starting at offset of an
+     * open file, such as the range an uncompressed asset occupies inside
+     * an APK. The descriptor stays the caller's, and must stay open until
+     * every transducer wanted has been loaded.
+     */
+    public static TransducerArchive open(FileDescriptor fd, long offset, long length) throws IOException, FormatException
+    {
+	FileInputStream stream = new FileInputStream(fd);
+	return new TransducerArchive(stream.getChannel(), offset, length, null, stream, false);
+    }
+
+    /**
+     * Reads a whole archive from in, for archives that can't be mapped,
+     * such as compressed assets. The transducers are still only set up when
+     * asked for, but are then read in place from the bytes read here.
+     */
+    public static TransducerArchive read(InputStream in) throws IOException, FormatException
+    {
+	ByteBuffer all = TransducerLoader.readAll(in);
+	return new TransducerArchive(null, 0, all.limit(), all, null, false);
+    }
+
+    /** Every transducer in the archive, in the order they come. */
+    public List<Entry> getEntries()
+    { return entries; }
+
+    /** The first transducer named name, or null if there is none. */
+    public Entry find(String name)
+    {
+	for (Entry entry : entries)
+	    {
+		if (name.equals(entry.getName()))
+		    { return entry; }
+	    }
+	return null;
+    }
+
+    /**
+     * Returns the transducer named name, loading it if this is the first
+     * time it is asked for, or null if the archive has no such transducer.
+     */
+    public Transducer get(String name) throws IOException, FormatException
+    {
+	Entry entry = find(name);
+	return entry == null ? null : get(entry);
+    }
+
+    /**
+     * Returns the transducer of entry, loading it if this is the first time
+     * it is asked for. Later calls return the same transducer.
+     */
+    public Transducer get(Entry entry) throws IOException, FormatException
+    {
+	Transducer t = entry.transducer;
+	if (t != null)
+	    { return t; }
+	synchronized (entry)
+	    {
+		if (entry.transducer == null)
+		    { entry.transducer = load(entry); }
+		return entry.transducer;
+	    }
+    }
+
+    /**
+     * Closes the file if open(File) opened it. Transducers loaded already
+     * can still be used, but no more can be loaded.
+     */
+    public void close() throws IOException
+    {
+	if (ownsStream)
+	    { stream.close(); }
+    }
+
+    private Transducer load(Entry entry) throws IOException, FormatException
+    {
+	if (bytes == null)
+	    { return TransducerLoader.map(channel, base + entry.offset, entry.length); }
+	ByteBuffer slice = bytes.duplicate();
+	slice.position((int) entry.offset);
+	slice.limit((int) (entry.offset + entry.length));
+	return TransducerLoader.load(slice.slice());
+    }
+
+    private List<Entry> index(Window in) throws IOException, FormatException
+    {
+	List<Entry> found = new ArrayList<Entry>();
+	long pos = 0;
+	while (pos < in.length)
+	    {
+		Map<String, String> properties = new LinkedHashMap<String, String>();
+		long start = pos;
+		int headerLength = 0;
+		if (isHfst3(in, pos))
+		    {
+			// "HFST\0", the length of the properties, '\0', then
+			// the properties as NUL-terminated keys and values
+			int length = in.get(pos + 5) | in.get(pos + 6) << 8;
+			properties = readProperties(in, pos + 8, length);
+			String type = properties.get("type");
+			if (type == null || !type.startsWith("HFST_OL"))
+			    { throw new FormatException(); }
+			headerLength = 8 + length;
+		    }
+		else if (pos != 0)
+		    { throw new FormatException(); }
+		byte[] head = new byte[headerLength + 56];
+		in.get(pos, head);
+		TransducerHeader h = new TransducerHeader(ByteBuffer.wrap(head));
+		pos += head.length;
+		for (int i = 0; i < h.getSymbolCount(); ++i)
+		    {
+			while (in.get(pos) != 0)
+			    { ++pos; }
+			++pos;
+		    }
+		pos += h.getIndexTableBytes() + h.getTargetTableBytes();
+		if (pos > in.length)
+		    { throw new EOFException("Archive is truncated"); }
+		found.add(new Entry(properties, h, start, pos - start));
+	    }
+	return found;
+    }
+
+    private static boolean isHfst3(Window in, long pos) throws IOException
+    {
+	return pos + 8 <= in.length && in.get(pos) == 'H' && in.get(pos + 1) == 'F' &&
+	    in.get(pos + 2) == 'S' && in.get(pos + 3) == 'T' && in.get(pos + 4) == 0;
+    }
+
+    private static Map<String, String> readProperties(Window in, long pos, int length) throws IOException
+    {
+	byte[] raw = new byte[length];
+	in.get(pos, raw);
+	Map<String, String> properties = new LinkedHashMap<String, String>();
+	String key = null;
+	int start = 0;
+	for (int i = 0; i < length; ++i)
+	    {
+		if (raw[i] != 0)
+		    { continue; }
+		String s = new String(raw, start, i - start, "UTF-8");
+		if (key == null)
+		    { key = s; }
+		else
+		    {
+			properties.put(key, s);
+			key = null;
+		    }
+		start = i + 1;
+	    }
+	return properties;
+    }
+
+    /**
+     * Reads the archive while indexing it, a block at a time from the
+     * file, or straight from the bytes read by read(InputStream).
+     */
+    private class Window
+    {
+	final long length;
+	private final ByteBuffer block;
+	private long blockStart = -1;
+
+	Window(long length)
+	{
+	    this.length = length;
+	    block = bytes == null ? ByteBuffer.allocate(WINDOW) : null;
+	}
+
+	int get(long pos) throws IOException
+	{
+	    if (pos >= length)
+		{ throw new EOFException("Archive is truncated"); }
+	    if (bytes != null)
+		{ return bytes.get((int) pos) & 0xFF; }
+	    if (blockStart < 0 || pos < blockStart || pos >= blockStart + block.limit())
+		{ fill(pos); }
+	    return block.get((int) (pos - blockStart)) & 0xFF;
+	}
+
+	void get(long pos, byte[] dest) throws IOException
+	{
+	    for (int i = 0; i < dest.length; ++i)
+		{ dest[i] = (byte) get(pos + i); }
+	}
+
+	private void fill(long pos) throws IOException
+	{
+	    block.clear();
+	    block.limit((int) Math.min(WINDOW, length - pos));
+	    while (block.hasRemaining())
+		{
+		    if (channel.read(block, base + pos + block.position()) < 0)
+			{ throw new EOFException("Archive is truncated"); }
+		}
+	    block.flip();
+	    blockStart = pos;
+	}
+    }
+}
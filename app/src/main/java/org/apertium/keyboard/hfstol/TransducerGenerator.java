@@ -0,0 +1,202 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds random transducers of a chosen size and shape, for measuring how
+ * loading and lookup scale with models much bigger than the one shipped.
+ * The same parameters and seed always give the same transducer.
+ *
+ * Each state gets fanOut arcs on distinct letters to random states, each
+ * of which copies its letter to the output or, now and then, writes a
+ * different one. On top of those, a state has an epsilon arc with
+ * probability epsilonDensity and a flag diacritic arc with probability
+ * flagDensity; both only lead to later states, so that there are no
+ * epsilon cycles. About a quarter of the states are final.
+ */
+public class TransducerGenerator
+{
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+    private static final String[] TAGS = {"", "+N", "+V", "+Sg", "+Pl", "+Px"};
+    private static final String[] FLAGS = {
+	"@P.CASE.NOM@", "@P.CASE.GEN@", "@R.CASE.NOM@", "@D.CASE.GEN@",
+	"@U.NUM.SG@", "@U.NUM.PL@", "@C.NUM@", "@P.NUM.SG@"
+    };
+    private static final double FINAL_DENSITY = 0.25;
+
+    private final WeightedAutomaton automaton;
+    private final int[] firstArc;
+
+    private TransducerGenerator(WeightedAutomaton automaton, int[] firstArc)
+    {
+	this.automaton = automaton;
+	this.firstArc = firstArc;
+    }
+
+    /**
+     * Generates a transducer with the given number of states, letter arcs
+     * per state, and probabilities of a state having an epsilon arc and a
+     * flag diacritic arc.
+     */
+    public static TransducerGenerator generate(int states, int fanOut, double epsilonDensity,
+					       double flagDensity, long seed)
+    {
+	if (states < 1 || fanOut < 0)
+	    { throw new IllegalArgumentException("Need at least one state and no negative fan-out"); }
+	Random random = new Random(seed);
+	WeightedAutomaton a = new WeightedAutomaton();
+	for (int s = 1; s < states; ++s)
+	    { a.addState(); }
+	int[] firstArc = new int[states + 1];
+	char[] letters = LETTERS.toCharArray();
+	for (int s = 0; s < states; ++s)
+	    {
+		firstArc[s] = a.getArcCount();
+		if (s + 1 < states && random.nextDouble() < epsilonDensity)
+		    {
+			a.addArc(s, WeightedAutomaton.EPSILON, TAGS[random.nextInt(TAGS.length)],
+				 s + 1 + random.nextInt(states - s - 1), weight(random));
+		    }
+		if (s + 1 < states && random.nextDouble() < flagDensity)
+		    {
+			String flag = FLAGS[random.nextInt(FLAGS.length)];
+			a.addArc(s, flag, flag, s + 1 + random.nextInt(states - s - 1), weight(random));
+		    }
+		// a partial shuffle picks fanOut distinct letters, while there are
+		// enough of them
+		for (int i = 0; i < fanOut; ++i)
+		    {
+			int j = i % letters.length;
+			int k = j + random.nextInt(letters.length - j);
+			char letter = letters[k];
+			letters[k] = letters[j];
+			letters[j] = letter;
+			String input = String.valueOf(letter);
+			String output = random.nextInt(10) == 0 ?
+			    String.valueOf(LETTERS.charAt(random.nextInt(LETTERS.length()))) : input;
+			a.addArc(s, input, output, random.nextInt(states), weight(random));
+		    }
+		if (random.nextDouble() < FINAL_DENSITY)
+		    { a.setFinal(s, weight(random)); }
+	    }
+	firstArc[states] = a.getArcCount();
+	return new TransducerGenerator(a, firstArc);
+    }
+
+    // weights come in hundredths, as weights estimated from counts tend to
+    // take few distinct values
+    private static float weight(Random random)
+    { return random.nextInt(300) / 100.0f; }
+
+    public WeightedAutomaton getAutomaton()
+    { return automaton; }
+
+    /**
+     * Inputs made by random walks from the start state to final states,
+     * reading the letters of the arcs taken. Flag diacritics are taken
+     * without checking them, so some inputs may have no analyses.
+     *
+     * @param count how many to make; fewer come back if too few walks end
+     * in a final state
+     */
+    public List<String> sampleInputs(int count, long seed)
+    {
+	Random random = new Random(seed);
+	List<String> inputs = new ArrayList<String>(count);
+	StringBuilder word = new StringBuilder();
+	for (int tries = 0; inputs.size() < count && tries < count*20; ++tries)
+	    {
+		word.setLength(0);
+		int s = 0;
+		for (int step = 0; step < 24; ++step)
+		    {
+			if (automaton.isFinal(s) && word.length() > 0 && random.nextInt(3) == 0)
+			    { break; }
+			int arcs = firstArc[s + 1] - firstArc[s];
+			if (arcs == 0)
+			    { break; }
+			int arc = firstArc[s] + random.nextInt(arcs);
+			String input = automaton.getSymbols().get(automaton.getInput(arc));
+			if (!TransducerAlphabet.isFlagDiacritic(input))
+			    { word.append(input); }
+			s = automaton.getTarget(arc);
+		    }
+		if (automaton.isFinal(s) && word.length() > 0)
+		    { inputs.add(word.toString()); }
+	    }
+	return inputs;
+    }
+
+    public static void main(String[] argv) throws IOException
+    {
+	int states = 10000;
+	int fanOut = 4;
+	double epsilons = 0.1;
+	double flags = 0.05;
+	long seed = 1;
+	boolean weighted = true;
+	int wordCount = 0;
+	String wordFile = null;
+	int arg = 0;
+	try {
+	    for (; arg < argv.length - 1 && argv[arg].startsWith("--"); ++arg)
+		{
+		    if (argv[arg].equals("--unweighted"))
+			{ weighted = false; }
+		    else if (argv[arg].equals("--states"))
+			{ states = Integer.parseInt(argv[++arg]); }
+		    else if (argv[arg].equals("--fanout"))
+			{ fanOut = Integer.parseInt(argv[++arg]); }
+		    else if (argv[arg].equals("--epsilons"))
+			{ epsilons = Double.parseDouble(argv[++arg]); }
+		    else if (argv[arg].equals("--flags"))
+			{ flags = Double.parseDouble(argv[++arg]); }
+		    else if (argv[arg].equals("--seed"))
+			{ seed = Long.parseLong(argv[++arg]); }
+		    else if (argv[arg].equals("--words"))
+			{
+			    wordCount = Integer.parseInt(argv[++arg]);
+			    wordFile = argv[++arg];
+			}
+		    else
+			{ usage(); }
+		}
+	}
+	catch (RuntimeException e) {
+	    // a missing or malformed number
+	    usage();
+	}
+	if (arg != argv.length - 1)
+	    { usage(); }
+	TransducerGenerator generator = generate(states, fanOut, epsilons, flags, seed);
+	WeightedAutomaton a = generator.getAutomaton();
+	File file = new File(argv[arg]);
+	HfstolWriter.write(a, file, "synthetic-" + seed, weighted);
+	System.out.println(a.getStateCount() + " states, " + a.getArcCount() + " arcs, " +
+			   file.length() + " bytes");
+	if (wordFile != null)
+	    {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(wordFile), "UTF-8"));
+		try {
+		    for (String word : generator.sampleInputs(wordCount, seed))
+			{ out.println(word); }
+		} finally {
+		    out.close();
+		}
+	    }
+    }
+
+    private static void usage()
+    {
+	System.err.println("Usage: java TransducerGenerator [--states N] [--fanout N] [--epsilons P] [--flags P]"
+			   + " [--seed N] [--unweighted] [--words N WORDFILE] FILE");
+	System.exit(1);
+    }
+}
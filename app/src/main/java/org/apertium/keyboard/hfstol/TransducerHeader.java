@@ -2,6 +2,7 @@ package org.apertium.keyboard.hfstol;
 
 //import java.io.DataInputStream;
 import java.io.FileInputStream;
+import java.nio.ByteBuffer;
 import org.apertium.keyboard.hfstol.FormatException;
 
 /**
@@ -33,25 +34,57 @@ public class TransducerHeader
     /**
      * Read in the (56 bytes of) header information, which unfortunately
      * is mostly in little-endian unsigned form.
+     *
+     * @deprecated use TransducerLoader.read, which reads the header along
+     * with the rest of the transducer
      */
+    @Deprecated
     public TransducerHeader(FileInputStream file) throws java.io.IOException, FormatException
     {
 	hfst3 = false;
 	intact = true; // could add some checks to toggle this and check outside
 	ByteArray head = new ByteArray(5);
-	file.read(head.getBytes());
+	TransducerLoader.readFully(file, head.getBytes(), 0, 5);
 	if (begins_hfst3_header(head)) {
 	    read_hfst3_header(file);
-	    file.read(head.getBytes());
+	    TransducerLoader.readFully(file, head.getBytes(), 0, 5);
 	    hfst3 = true;
 	}
 	ByteArray b = new ByteArray(head, 56);
-	file.read(b.getBytes(), 5, 51);
-	
+	TransducerLoader.readFully(file, b.getBytes(), 5, 51);
+	readFields(b);
+    }
+
+    /**
+     * Read the header from buffer, leaving its position just after the
+     * header, where the alphabet begins.
+     */
+    public TransducerHeader(ByteBuffer buffer) throws java.io.IOException, FormatException
+    {
+	hfst3 = false;
+	intact = true;
+	ByteArray head = new ByteArray(5);
+	buffer.get(head.getBytes());
+	if (begins_hfst3_header(head)) {
+	    ByteArray len = new ByteArray(2);
+	    buffer.get(len.getBytes());
+	    ByteArray header = new ByteArray(len.getUShort() + 1);
+	    buffer.get(header.getBytes());
+	    check_hfst3_type(header);
+	    buffer.get(head.getBytes());
+	    hfst3 = true;
+	}
+	ByteArray b = new ByteArray(head, 56);
+	buffer.get(b.getBytes(), 5, 51);
+	readFields(b);
+    }
+
+    private void readFields(ByteArray b) throws java.io.IOException, FormatException
+    {
 	number_of_input_symbols = b.getUShort();
 	number_of_symbols = b.getUShort();
-	size_of_transition_index_table = (int) b.getUInt();
-	size_of_transition_target_table = (int) b.getUInt();
+	size_of_transition_index_table = tableSize(b.getUInt());
+	size_of_transition_target_table = tableSize(b.getUInt());
 	number_of_states = (int) b.getUInt();
 	number_of_transitions = (int) b.getUInt();
 
@@ -66,6 +99,17 @@ public class TransducerHeader
 	has_unweighted_input_epsilon_cycles = b.getBool();
     }
 
+    /**
+     * Targets can only address 2^31 entries of either table, so a table
+     * any bigger than that is a corrupt header rather than a big transducer.
+     */
+    private static int tableSize(long entries) throws FormatException
+    {
+	if (entries > Integer.MAX_VALUE)
+	    { throw new FormatException(); }
+	return (int) entries;
+    }
+
     public Boolean begins_hfst3_header(ByteArray bytes)
     {
 	if (bytes.getSize() < 5) {
@@ -77,21 +121,30 @@ public class TransducerHeader
 		bytes.getUByte() == 0);
     }
 
+    /**
+     * @deprecated only the deprecated constructor reading from a stream
+     * needs this
+     */
+    @Deprecated
     public void read_hfst3_header(FileInputStream file) throws java.io.IOException, FormatException
     {
         // The only thing we really check is that the format begins with
         // HFST_OL. First we read the two bytes giving the header size...
 	ByteArray len = new ByteArray(2);
-	file.read(len.getBytes());
+	TransducerLoader.readFully(file, len.getBytes(), 0, 2);
         // Then we read the rest...
         ByteArray header = new ByteArray(len.getUShort() + 1);
-        file.read(header.getBytes());
-        // And just convert it to a String and see if the type is set to what we want
+        TransducerLoader.readFully(file, header.getBytes(), 0, header.getSize());
+        check_hfst3_type(header);
+    }
+
+    private void check_hfst3_type(ByteArray header) throws java.io.IOException, FormatException
+    {
+        // Just convert it to a String and see if the type is set to what we want
         String s = new String(header.getBytes(), "UTF-8");
         if (s.indexOf("type\0HFST_OL") == -1) {
             throw new FormatException();
         }
-
     }
 
     public int getInputSymbolCount()
@@ -106,12 +159,70 @@ public class TransducerHeader
     public int getTargetTableSize()
     { return size_of_transition_target_table; }
 
+    /** The bytes the index table takes in the file, which may pass 2^31. */
+    public long getIndexTableBytes()
+    { return size_of_transition_index_table*6L; }
+
+    /** The bytes the transition table takes in the file. */
+    public long getTargetTableBytes()
+    { return size_of_transition_target_table*(weighted ? 12L : 8L); }
+
+    public int getStateCount()
+    { return number_of_states; }
+
+    public int getTransitionCount()
+    { return number_of_transitions; }
+
     public Boolean isWeighted()
     { return weighted; }
 
+    public Boolean isDeterministic()
+    { return deterministic; }
+
+    public Boolean isInputDeterministic()
+    { return input_deterministic; }
+
+    public Boolean isMinimized()
+    { return minimized; }
+
+    public Boolean isCyclic()
+    { return cyclic; }
+
+    public Boolean hasEpsilonEpsilonTransitions()
+    { return has_epsilon_epsilon_transitions; }
+
+    public Boolean hasInputEpsilonTransitions()
+    { return has_input_epsilon_transitions; }
+
+    public Boolean hasInputEpsilonCycles()
+    { return has_input_epsilon_cycles; }
+
+    public Boolean hasUnweightedInputEpsilonCycles()
+    { return has_unweighted_input_epsilon_cycles; }
+
     public Boolean hasHfst3Header()
     { return hfst3; }
 
     public Boolean isIntact()
     { return intact; }
+
+    /**
+     * Writes the 56 bytes of header information, without any hfst3 header,
+     * to a little-endian buffer.
+     */
+    void write(ByteBuffer out)
+    {
+	out.putShort((short) number_of_input_symbols);
+	out.putShort((short) number_of_symbols);
+	out.putInt(size_of_transition_index_table);
+	out.putInt(size_of_transition_target_table);
+	out.putInt(number_of_states);
+	out.putInt(number_of_transitions);
+	Boolean[] properties = {weighted, deterministic, input_deterministic,
+				minimized, cyclic, has_epsilon_epsilon_transitions,
+				has_input_epsilon_transitions, has_input_epsilon_cycles,
+				has_unweighted_input_epsilon_cycles};
+	for (Boolean property : properties)
+	    { out.putInt(property ? 1 : 0); }
+    }
 }
@@ -0,0 +1,311 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Loads transducers by mapping their files into memory. The index and
+ * transition tables are then read in place, so loading time doesn't grow
+ * with the size of the tables, and every transducer mapped from the same
+ * file shares the same pages of the system's page cache.
+ *
+ * Transducers that can't be mapped, such as compressed assets, are read
+ * from a stream or channel instead, in a few large reads, with the tables
+ * then decoded in parallel. Either way, compact transducer files are told
+ * apart from hfstol ones by their magic number and loaded as such.
+ */
+public class TransducerLoader
+{
+    // the largest array some VMs will allocate
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Maps a whole hfstol or compact transducer file.
+     */
+    public static Transducer map(File file) throws IOException, FormatException
+    {
+	FileInputStream stream = new FileInputStream(file);
+	try {
+	    return map(stream.getChannel(), 0, file.length());
+	} finally {
+	    stream.close();
+	}
+    }
+
+    /**
+     * Maps length bytes starting at offset of an open file, such as the
+     * range an uncompressed asset occupies inside an APK. The descriptor
+     * stays the caller's, and can be closed as soon as this returns, since
+     * a mapping doesn't need the file to stay open.
+     */
+    public static Transducer map(FileDescriptor fd, long offset, long length) throws IOException, FormatException
+    {
+	// the stream is only the way to a channel for fd, which holds on to
+	// it while mapping, and neither is needed once the tables are mapped.
+	// It isn't closed: on the desktop JVM that would close the caller's
+	// descriptor too
+	FileInputStream stream = new FileInputStream(fd);
+	return map(stream.getChannel(), offset, length);
+    }
+
+    /**
+     * Maps length bytes starting at offset of channel. A transducer of more
+     * than 2 GB, which no single buffer can hold, has each table mapped in
+     * segments instead.
+     */
+    public static Transducer map(FileChannel channel, long offset, long length) throws IOException, FormatException
+    {
+	if (length > Integer.MAX_VALUE)
+	    { return mapSegmented(channel, offset, length); }
+	MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	return load(buffer);
+    }
+
+    /**
+     * Maps the header and alphabet on their own, and then the index and
+     * transition tables as SegmentedTables, addressing the file with long
+     * offsets throughout.
+     */
+    static Transducer mapSegmented(FileChannel channel, long offset, long length) throws IOException, FormatException
+    {
+	// only the pages the header and alphabet are on are ever touched
+	MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+					    Math.min(length, Integer.MAX_VALUE));
+	TransducerHeader h = new TransducerHeader(head);
+	TransducerAlphabet a = new TransducerAlphabet(head, h.getSymbolCount());
+	long indexStart = offset + head.position();
+	long transitionStart = indexStart + h.getIndexTableBytes();
+	if (transitionStart + h.getTargetTableBytes() > offset + length)
+	    { throw new IOException("Transducer is truncated"); }
+	boolean weighted = h.isWeighted();
+	IndexTable indices =
+	    new IndexTable(new SegmentedTable(channel, indexStart, h.getIndexTableSize(),
+					      false, false));
+	TransitionTable transitions =
+	    new TransitionTable(new SegmentedTable(channel, transitionStart, h.getTargetTableSize(),
+						   true, weighted));
+	return create(h, a, indices, transitions, new Tokenizer(a, h.getInputSymbolCount()));
+    }
+
+    /**
+     * Reads a transducer from buffer, which is positioned at its header.
+     * The tables are not copied out of buffer.
+     */
+    public static Transducer load(ByteBuffer buffer) throws IOException, FormatException
+    {
+	if (CompactTransducer.isCompact(buffer))
+	    { return CompactTransducer.load(buffer); }
+	TransducerHeader h = new TransducerHeader(buffer);
+	TransducerAlphabet a = new TransducerAlphabet(buffer, h.getSymbolCount());
+	if (h.isWeighted())
+	    {
+		return new WeightedTransducer(buffer, h, a);
+	    }
+	return new UnweightedTransducer(buffer, h, a);
+    }
+
+    /**
+     * Reads a whole transducer from in, decoding the tables on the threads
+     * of a pool with one thread per core.
+     */
+    public static Transducer read(InputStream in) throws IOException, FormatException
+    {
+	ForkJoinPool pool = new ForkJoinPool();
+	try {
+	    return read(in, pool);
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    /**
+     * Reads a whole transducer from in. All the bytes are read first, in as
+     * few large reads as in allows; then the transducer is decoded as by
+     * read(ByteBuffer, ForkJoinPool).
+     */
+    public static Transducer read(InputStream in, ForkJoinPool pool) throws IOException, FormatException
+    { return read(readAll(in), pool); }
+
+    /**
+     * Reads a whole transducer from channel, as the InputStream version
+     * does. The bytes are read straight into one buffer of the right size
+     * when channel knows its size.
+     */
+    public static Transducer read(ReadableByteChannel channel) throws IOException, FormatException
+    {
+	ForkJoinPool pool = new ForkJoinPool();
+	try {
+	    return read(channel, pool);
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    public static Transducer read(ReadableByteChannel channel, ForkJoinPool pool) throws IOException, FormatException
+    { return read(readAll(channel), pool); }
+
+    /**
+     * Decodes the transducer in buffer, which holds the whole of an hfstol
+     * or compact transducer file. A compact transducer is read in place;
+     * otherwise the index and transition tables are decoded in slices on
+     * the threads of pool while this thread parses the alphabet and builds
+     * the tokenizer.
+     */
+    public static Transducer read(ByteBuffer buffer, ForkJoinPool pool) throws IOException, FormatException
+    {
+	if (CompactTransducer.isCompact(buffer))
+	    { return CompactTransducer.load(buffer); }
+	TransducerHeader h = new TransducerHeader(buffer);
+	// find where the alphabet ends, so the tables can start decoding
+	int alphabetStart = buffer.position();
+	int pos = alphabetStart;
+	for (int i = 0; i < h.getSymbolCount(); ++i)
+	    {
+		while (pos < buffer.limit() && buffer.get(pos) != 0)
+		    { ++pos; }
+		++pos;
+	    }
+	int indexStart = pos;
+	if (indexStart + h.getIndexTableBytes() + h.getTargetTableBytes() > buffer.limit())
+	    { throw new IOException("Transducer is truncated"); }
+	int transitionStart = (int) (indexStart + h.getIndexTableBytes());
+	int transitionCount = h.getTargetTableSize();
+	boolean weighted = h.isWeighted();
+	char[] indexInputs = new char[h.getIndexTableSize()];
+	int[] indexTargets = new int[h.getIndexTableSize()];
+	char[] inputs = new char[transitionCount];
+	char[] outputs = new char[transitionCount];
+	int[] targets = new int[transitionCount];
+	float[] weights = weighted ? new float[transitionCount] : null;
+	ForkJoinTask<Void> indices =
+	    pool.submit(new TableDecoder(buffer, indexStart, indexInputs, indexTargets));
+	ForkJoinTask<Void> transitions =
+	    pool.submit(new TableDecoder(buffer, transitionStart, inputs, outputs, targets, weights));
+	TransducerAlphabet a = new TransducerAlphabet(buffer, h.getSymbolCount());
+	Tokenizer tokenizer = new Tokenizer(a, h.getInputSymbolCount());
+	indices.join();
+	transitions.join();
+	return create(h, a, new IndexTable(new ArrayTable(indexInputs, null, indexTargets, null)),
+		      new TransitionTable(new ArrayTable(inputs, outputs, targets, weights)),
+		      tokenizer);
+    }
+
+    /**
+     * Reads in to its end. available() is taken as the size to expect,
+     * which for an asset is the whole uncompressed length, so that reading
+     * an asset is normally a single read into an array of the right size.
+     */
+    static ByteBuffer readAll(InputStream in) throws IOException
+    {
+	byte[] bytes = new byte[Math.max(in.available(), 1 << 16)];
+	int length = 0;
+	while (true)
+	    {
+		if (length == bytes.length)
+		    {
+			// check for the end before growing, so that an array of
+			// exactly the right size isn't copied for nothing
+			int next = in.read();
+			if (next < 0)
+			    { break; }
+			bytes = grow(bytes);
+			bytes[length++] = (byte) next;
+		    }
+		int n = in.read(bytes, length, bytes.length - length);
+		if (n < 0)
+		    { break; }
+		length += n;
+	    }
+	return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    private static ByteBuffer readAll(ReadableByteChannel channel) throws IOException
+    {
+	long expected = 1 << 16;
+	if (channel instanceof FileChannel)
+	    {
+		FileChannel file = (FileChannel) channel;
+		expected = Math.max(file.size() - file.position(), 1);
+	    }
+	if (expected > MAX_ARRAY_SIZE)
+	    { throw new IOException("Transducer is too big to read into memory; map it instead"); }
+	ByteBuffer buffer = ByteBuffer.allocate((int) expected);
+	while (true)
+	    {
+		if (!buffer.hasRemaining())
+		    {
+			ByteBuffer probe = ByteBuffer.allocate(1);
+			if (readOnce(channel, probe) < 0)
+			    { break; }
+			ByteBuffer bigger = ByteBuffer.wrap(grow(buffer.array()));
+			bigger.position(buffer.position());
+			buffer = bigger;
+			buffer.put(probe.get(0));
+		    }
+		if (readOnce(channel, buffer) < 0)
+		    { break; }
+	    }
+	buffer.flip();
+	return buffer;
+    }
+
+    private static int readOnce(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+    {
+	int n;
+	// a non-blocking channel may read nothing; keep at it until it does
+	do
+	    { n = channel.read(buffer); }
+	while (n == 0 && buffer.hasRemaining());
+	return n;
+    }
+
+    private static byte[] grow(byte[] bytes) throws IOException
+    {
+	if (bytes.length == MAX_ARRAY_SIZE)
+	    { throw new IOException("Transducer is too big to read into memory; map it instead"); }
+	return Arrays.copyOf(bytes, (int) Math.min(bytes.length*2L, MAX_ARRAY_SIZE));
+    }
+
+    /**
+     * Fills length bytes of bytes from in, however many reads that takes.
+     *
+     * @throws EOFException if in ends first
+     */
+    static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException
+    {
+	while (length > 0)
+	    {
+		int n = in.read(bytes, offset, length);
+		if (n < 0)
+		    { throw new EOFException("Transducer is truncated"); }
+		offset += n;
+		length -= n;
+	    }
+    }
+
+    /**
+     * Puts together a transducer of the kind the header calls for from parts
+     * that have already been read.
+     */
+    static Transducer create(TransducerHeader h, TransducerAlphabet a,
+			     IndexTable indices, TransitionTable transitions,
+			     Tokenizer tokenizer)
+    {
+	if (h.isWeighted())
+	    {
+		return new WeightedTransducer(h, a, indices, transitions, tokenizer);
+	    }
+	return new UnweightedTransducer(h, a, indices, transitions, tokenizer);
+    }
+}
@@ -0,0 +1,346 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * A cache of a fully decoded transducer. The first time a transducer is
+ * loaded, its header, parsed alphabet, flag diacritic operations and tables
+ * are written to a snapshot file. Later loads map the snapshot and use it as
+ * it is, without parsing the alphabet or decoding anything. A snapshot
+ * records the length of what it was made from and a stamp of its version,
+ * and is ignored and rewritten once those no longer match. For a file the
+ * stamp is its modification time; a source without one, such as an app
+ * asset, can be given the app's install or update time instead.
+ *
+ * The layout is little-endian throughout, with each section starting on an
+ * 8-byte boundary:
+ *   magic, version, source length, source stamp, snapshot length
+ *   the 56-byte hfstol header
+ *   symbol count, feature count, end offset of each symbol, UTF-16 symbols
+ *   flag count, then symbol, operator, feature and value of each flag
+ *   the tokenizer: its direct table, then node count, node labels, node
+ *   symbols and the first child of each node
+ *   the index table and the transition table, laid out as in hfstol
+ */
+public class TransducerSnapshot
+{
+    /** Bump whenever the layout changes, so that old snapshots are redone. */
+    public static final int VERSION = 2;
+
+    private static final long MAGIC = 0x50414e534c4f4648L; // "HFOLSNAP"
+    private static final int ALIGNMENT = 8;
+    private static final int LENGTH_OFFSET = 32;
+
+    /**
+     * Returns the transducer in source, from snapshot if it is up to date
+     * and otherwise by mapping source and then writing a new snapshot.
+     */
+    public static Transducer load(File source, File snapshot) throws IOException, FormatException
+    {
+	// a transducer too big for one mapping gains little from a snapshot,
+	// which only saves parsing the alphabet
+	if (source.length() > Integer.MAX_VALUE)
+	    { return TransducerLoader.map(source); }
+	Transducer t = read(source, snapshot);
+	if (t != null)
+	    { return t; }
+	t = TransducerLoader.map(source);
+	try {
+	    write(t, source, snapshot);
+	} catch (IOException e) {
+	    // the snapshot only saves time next time round
+	    snapshot.delete();
+	}
+	return t;
+    }
+
+    /**
+     * Maps snapshot and returns the transducer in it, or null if there is no
+     * snapshot of the current version of source.
+     */
+    public static Transducer read(File source, File snapshot) throws IOException
+    { return read(snapshot, source.length(), source.lastModified()); }
+
+    /**
+     * Maps snapshot and returns the transducer in it, or null if there is no
+     * snapshot or it was made from a source of another length or stamp.
+     */
+    public static Transducer read(File snapshot, long sourceLength, long sourceStamp) throws IOException
+    {
+	if (!snapshot.isFile())
+	    { return null; }
+	ByteBuffer buffer;
+	FileInputStream stream = new FileInputStream(snapshot);
+	try {
+	    FileChannel channel = stream.getChannel();
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	} finally {
+	    stream.close();
+	}
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+	if (buffer.capacity() < LENGTH_OFFSET + 8 ||
+	    buffer.getLong() != MAGIC ||
+	    buffer.getInt() != VERSION)
+	    { return null; }
+	buffer.getInt();
+	if (buffer.getLong() != sourceLength ||
+	    buffer.getLong() != sourceStamp ||
+	    buffer.getLong() != buffer.capacity())
+	    { return null; }
+	TransducerHeader h;
+	try {
+	    h = new TransducerHeader(buffer);
+	} catch (FormatException e) {
+	    return null;
+	}
+	TransducerAlphabet a = readAlphabet(buffer);
+	align(buffer);
+	Tokenizer tokenizer = readTokenizer(buffer, a, h.getInputSymbolCount());
+	align(buffer);
+	IndexTable indices = new IndexTable(buffer, h.getIndexTableSize());
+	align(buffer);
+	TransitionTable transitions = new TransitionTable(buffer, h.getTargetTableSize(),
+							  h.isWeighted());
+	return TransducerLoader.create(h, a, indices, transitions, tokenizer);
+    }
+
+    /**
+     * Writes a snapshot of t, which was loaded from source. The snapshot is
+     * written under a temporary name and then renamed, so a reader never
+     * sees it half-written.
+     */
+    public static void write(Transducer t, File source, File snapshot) throws IOException
+    { write(t, snapshot, source.length(), source.lastModified()); }
+
+    /**
+     * Writes a snapshot of t, recording the length and stamp of what it was
+     * loaded from for read to check.
+     */
+    public static void write(Transducer t, File snapshot, long sourceLength, long sourceStamp) throws IOException
+    {
+	File partial = new File(snapshot.getPath() + ".partial");
+	FileOutputStream stream = new FileOutputStream(partial);
+	try {
+	    Output out = new Output(stream.getChannel());
+	    out.buffer.putLong(MAGIC);
+	    out.buffer.putInt(VERSION);
+	    out.buffer.putInt(0);
+	    out.buffer.putLong(sourceLength);
+	    out.buffer.putLong(sourceStamp);
+	    out.buffer.putLong(0); // filled in at the end
+	    t.getHeader().write(out.buffer);
+	    writeAlphabet(out, t.getAlphabet());
+	    out.align();
+	    writeTokenizer(out, t.getTokenizer());
+	    out.align();
+	    IndexTable indices = t.getIndexTable();
+	    for (int i = 0; i < indices.size(); ++i)
+		{
+		    out.reserve(6);
+		    out.buffer.putShort((short) indices.getInput(i));
+		    out.buffer.putInt((int) indices.getTarget(i));
+		}
+	    out.align();
+	    TransitionTable transitions = t.getTransitionTable();
+	    boolean weighted = t.getHeader().isWeighted();
+	    for (int i = 0; i < transitions.size(); ++i)
+		{
+		    out.reserve(12);
+		    out.buffer.putShort((short) transitions.getInput(i));
+		    out.buffer.putShort((short) transitions.getOutput(i));
+		    out.buffer.putInt((int) transitions.getTarget(i));
+		    if (weighted)
+			{ out.buffer.putFloat(transitions.getWeight(i)); }
+		}
+	    out.finish();
+	} finally {
+	    stream.close();
+	}
+	if (!partial.renameTo(snapshot))
+	    {
+		partial.delete();
+		throw new IOException("Couldn't move snapshot into place at " + snapshot);
+	    }
+    }
+
+    static TransducerAlphabet readAlphabet(ByteBuffer buffer)
+    {
+	int count = buffer.getInt();
+	int features = buffer.getInt();
+	int[] ends = new int[count];
+	buffer.asIntBuffer().get(ends);
+	buffer.position(buffer.position() + count*4);
+	char[] chars = new char[count == 0 ? 0 : ends[count - 1]];
+	buffer.asCharBuffer().get(chars);
+	buffer.position(buffer.position() + chars.length*2);
+	Vector<String> keys = new Vector<String>(count);
+	int start = 0;
+	for (int i = 0; i < count; ++i)
+	    {
+		keys.add(new String(chars, start, ends[i] - start));
+		start = ends[i];
+	    }
+	align(buffer);
+	Hashtable<Integer, FlagDiacriticOperation> operations =
+	    new Hashtable<Integer, FlagDiacriticOperation>();
+	HfstOptimizedLookup.FlagDiacriticOperator[] operators =
+	    HfstOptimizedLookup.FlagDiacriticOperator.values();
+	int flags = buffer.getInt();
+	for (int i = 0; i < flags; ++i)
+	    {
+		int symbol = buffer.getInt();
+		int op = buffer.getInt();
+		int feature = buffer.getInt();
+		int value = buffer.getInt();
+		operations.put(symbol, new FlagDiacriticOperation(operators[op], feature, value));
+	    }
+	return new TransducerAlphabet(keys, operations, features);
+    }
+
+    static void writeAlphabet(Output out, TransducerAlphabet a) throws IOException
+    {
+	int count = a.keyTable.size();
+	out.reserve(8);
+	out.buffer.putInt(count);
+	out.buffer.putInt(a.features);
+	int end = 0;
+	for (String key : a.keyTable)
+	    {
+		end += key.length();
+		out.reserve(4);
+		out.buffer.putInt(end);
+	    }
+	for (String key : a.keyTable)
+	    {
+		for (int i = 0; i < key.length(); ++i)
+		    {
+			out.reserve(2);
+			out.buffer.putChar(key.charAt(i));
+		    }
+	    }
+	out.align();
+	out.reserve(4);
+	out.buffer.putInt(a.operations.size());
+	for (Map.Entry<Integer, FlagDiacriticOperation> entry : a.operations.entrySet())
+	    {
+		FlagDiacriticOperation flag = entry.getValue();
+		out.reserve(16);
+		out.buffer.putInt(entry.getKey());
+		out.buffer.putInt(flag.op.ordinal());
+		out.buffer.putInt(flag.feature);
+		out.buffer.putInt(flag.value);
+	    }
+    }
+
+    private static Tokenizer readTokenizer(ByteBuffer buffer, TransducerAlphabet a,
+					   int inputSymbols)
+    {
+	char[] direct = new char[Tokenizer.DIRECT_RANGE];
+	buffer.asCharBuffer().get(direct);
+	buffer.position(buffer.position() + direct.length*2);
+	int count = buffer.getInt();
+	char[] labels = new char[count];
+	buffer.asCharBuffer().get(labels);
+	buffer.position(buffer.position() + count*2);
+	char[] symbols = new char[count];
+	buffer.asCharBuffer().get(symbols);
+	buffer.position(buffer.position() + count*2);
+	align(buffer);
+	int[] firstChild = new int[count + 1];
+	buffer.asIntBuffer().get(firstChild);
+	buffer.position(buffer.position() + firstChild.length*4);
+	return new Tokenizer(a, inputSymbols, direct, labels, symbols, firstChild);
+    }
+
+    private static void writeTokenizer(Output out, Tokenizer tokenizer) throws IOException
+    {
+	for (char symbol : tokenizer.direct)
+	    {
+		out.reserve(2);
+		out.buffer.putChar(symbol);
+	    }
+	out.reserve(4);
+	out.buffer.putInt(tokenizer.labels.length);
+	for (char label : tokenizer.labels)
+	    {
+		out.reserve(2);
+		out.buffer.putChar(label);
+	    }
+	for (char symbol : tokenizer.symbols)
+	    {
+		out.reserve(2);
+		out.buffer.putChar(symbol);
+	    }
+	out.align();
+	for (int first : tokenizer.firstChild)
+	    {
+		out.reserve(4);
+		out.buffer.putInt(first);
+	    }
+    }
+
+    static void align(ByteBuffer buffer)
+    {
+	int misalignment = buffer.position() % ALIGNMENT;
+	if (misalignment != 0)
+	    { buffer.position(buffer.position() + ALIGNMENT - misalignment); }
+    }
+
+    /**
+     * A little-endian buffer in front of the snapshot file's channel, also
+     * used to write CompactTransducer files.
+     */
+    static class Output
+    {
+	final FileChannel channel;
+	final ByteBuffer buffer;
+
+	Output(FileChannel c)
+	{
+	    channel = c;
+	    buffer = ByteBuffer.allocate(1 << 16);
+	    buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** Makes room for n more bytes in the buffer. */
+	void reserve(int n) throws IOException
+	{
+	    if (buffer.remaining() < n)
+		{ flush(); }
+	}
+
+	void align() throws IOException
+	{
+	    reserve(ALIGNMENT);
+	    while ((channel.position() + buffer.position()) % ALIGNMENT != 0)
+		{ buffer.put((byte) 0); }
+	}
+
+	void flush() throws IOException
+	{
+	    buffer.flip();
+	    while (buffer.hasRemaining())
+		{ channel.write(buffer); }
+	    buffer.clear();
+	}
+
+	/** Flushes everything and records the final length. */
+	void finish() throws IOException
+	{
+	    flush();
+	    buffer.putLong(channel.position());
+	    buffer.flip();
+	    channel.write(buffer, LENGTH_OFFSET);
+	    buffer.clear();
+	}
+    }
+}
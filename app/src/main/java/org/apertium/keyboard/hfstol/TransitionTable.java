@@ -0,0 +1,54 @@
+package org.apertium.keyboard.hfstol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A transducer's transition table, kept like IndexTable in one of the
+ * TableLayouts: parallel primitive arrays of inputs, outputs, targets and
+ * weights, or the entries in place in a mapped file. Unweighted tables
+ * have no weight column and report every weight as zero.
+ */
+public class TransitionTable
+{
+    private final TableLayout entries;
+
+    /**
+     * Reads transitions in place from buffer, as the IndexTable
+     * constructor taking a buffer does for indices.
+     */
+    public TransitionTable(ByteBuffer buffer,
+			   int transitionCount,
+			   boolean weighted)
+    { this(new BufferTable(buffer, transitionCount, true, weighted)); }
+
+    TransitionTable(TableLayout entries)
+    { this.entries = entries; }
+
+    public int getInput(int pos)
+    { return entries.getInput(pos); }
+
+    public int getOutput(int pos)
+    { return entries.getOutput(pos); }
+
+    public long getTarget(int pos)
+    { return entries.getTarget(pos); }
+
+    public float getWeight(int pos)
+    { return entries.getWeight(pos); }
+
+    public boolean isFinal(int pos)
+    {
+	return (getInput(pos) == HfstOptimizedLookup.NO_SYMBOL_NUMBER &&
+		getOutput(pos) == HfstOptimizedLookup.NO_SYMBOL_NUMBER &&
+		getTarget(pos) == 1);
+    }
+
+    public int size()
+    { return entries.size(); }
+
+    /**
+     * The bytes the decoded transitions take on the heap, as for IndexTable.
+     */
+    public long getHeapBytes()
+    { return entries.getHeapBytes(); }
+}
@@ -0,0 +1,149 @@
+package org.apertium.keyboard.hfstol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A weighted automaton being built in memory, to be written out in the
+ * optimized-lookup format by HfstolWriter. States are numbered from 0, the
+ * start state, in the order they are added. Symbols are strings, with ""
+ * for epsilon, and flag diacritics written as usual, e.g. @P.CASE.NOM@.
+ * Arcs are kept in parallel primitive arrays, so that automata with tens of
+ * millions of them can be built.
+ */
+public class WeightedAutomaton
+{
+    public static final String EPSILON = "";
+
+    private final List<String> symbols = new ArrayList<String>();
+    private final Map<String, Integer> symbolNumbers = new HashMap<String, Integer>();
+    private final List<String> declaredInputs = new ArrayList<String>();
+
+    private float[] finalWeights = new float[16];
+    private boolean[] finals = new boolean[16];
+    private int stateCount;
+
+    private int[] sources = new int[64];
+    private char[] inputs = new char[64];
+    private char[] outputs = new char[64];
+    private int[] targets = new int[64];
+    private float[] weights = new float[64];
+    private int arcCount;
+
+    /** A new automaton with just the start state. */
+    public WeightedAutomaton()
+    {
+	symbol(EPSILON);
+	addState();
+    }
+
+    /** Adds a state and returns its number. */
+    public int addState()
+    {
+	if (stateCount == finals.length)
+	    {
+		finals = Arrays.copyOf(finals, stateCount*2);
+		finalWeights = Arrays.copyOf(finalWeights, stateCount*2);
+	    }
+	return stateCount++;
+    }
+
+    public void setFinal(int state, float weight)
+    {
+	checkState(state);
+	finals[state] = true;
+	finalWeights[state] = weight;
+    }
+
+    /**
+     * Adds an arc from source to target reading input and writing output.
+     */
+    public void addArc(int source, String input, String output, int target, float weight)
+    {
+	checkState(source);
+	checkState(target);
+	if (arcCount == sources.length)
+	    {
+		int size = arcCount*2;
+		sources = Arrays.copyOf(sources, size);
+		inputs = Arrays.copyOf(inputs, size);
+		outputs = Arrays.copyOf(outputs, size);
+		targets = Arrays.copyOf(targets, size);
+		weights = Arrays.copyOf(weights, size);
+	    }
+	sources[arcCount] = source;
+	inputs[arcCount] = (char) symbol(input);
+	outputs[arcCount] = (char) symbol(output);
+	targets[arcCount] = target;
+	weights[arcCount] = weight;
+	++arcCount;
+    }
+
+    /**
+     * Makes symbol an input symbol even if no arc reads it, as symbols of
+     * the alphabet that an hfst transducer doesn't use stay in it. Inputs
+     * with such a symbol then find no analyses, rather than failing to be
+     * tokenized.
+     */
+    public void declareInput(String symbol)
+    {
+	symbol(symbol);
+	declaredInputs.add(symbol);
+    }
+
+    public int getStateCount()
+    { return stateCount; }
+
+    public int getArcCount()
+    { return arcCount; }
+
+    public boolean isFinal(int state)
+    { return finals[state]; }
+
+    public float getFinalWeight(int state)
+    { return finalWeights[state]; }
+
+    /** The symbols used so far, by number; 0 is epsilon. */
+    public List<String> getSymbols()
+    { return symbols; }
+
+    /** The symbols passed to declareInput. */
+    List<String> getDeclaredInputs()
+    { return declaredInputs; }
+
+    int getSource(int arc)
+    { return sources[arc]; }
+
+    int getInput(int arc)
+    { return inputs[arc]; }
+
+    int getOutput(int arc)
+    { return outputs[arc]; }
+
+    int getTarget(int arc)
+    { return targets[arc]; }
+
+    float getWeight(int arc)
+    { return weights[arc]; }
+
+    private int symbol(String s)
+    {
+	Integer number = symbolNumbers.get(s);
+	if (number != null)
+	    { return number; }
+	if (symbols.size() == HfstOptimizedLookup.NO_SYMBOL_NUMBER)
+	    { throw new IllegalStateException("Too many symbols"); }
+	symbols.add(s);
+	symbolNumbers.put(s, symbols.size() - 1);
+	return symbols.size() - 1;
+    }
+
+    private void checkState(int state)
+    {
+	if (state < 0 || state >= stateCount)
+	    { throw new IllegalArgumentException("No state " + state); }
+    }
+}
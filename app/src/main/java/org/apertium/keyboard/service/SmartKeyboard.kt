@@ -15,8 +15,13 @@ import android.view.inputmethod.*
 import org.apertium.keyboard.tflite.LanguageModel
 import org.apertium.keyboard.tflite.LanguageModel.Model
 import org.apertium.keyboard.tflite.LanguageModel.Device
+import org.apertium.keyboard.ModelRegistry
 import org.apertium.keyboard.R
+import org.apertium.keyboard.SmartKeyboardApp
 import kotlin.math.max
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
 import org.apertium.keyboard.hfstol.HfstLanguageModel
 
@@ -51,8 +56,18 @@ class SmartKeyboard : InputMethodService(), KeyboardView.OnKeyboardActionListene
 
     private lateinit var wordSeparators: Set<Char>
 
-    var languageModel: LanguageModel? = null
-//    var languageModel: HfstLanguageModel? = null
+    // Models are loaded off the main thread by the app's registry, so that
+    // the keyboard can be used straight away and each model starts giving
+    // suggestions as soon as it is ready
+    private var destroyed = false
+    private val onModelReady: () -> Unit = {
+        if (!destroyed && currentInputConnection != null) {
+            updateCandidates()
+        }
+    }
+
+    private var languageModel: Future<LanguageModel>? = null
+    private var hfstLanguageModel: Future<HfstLanguageModel>? = null
 
     /**
      * Main initialization of the input method component.  Be sure to call
@@ -62,8 +77,35 @@ class SmartKeyboard : InputMethodService(), KeyboardView.OnKeyboardActionListene
         super.onCreate()
         inputMethodManager = getSystemService(Context.INPUT_METHOD_SERVICE) as InputMethodManager
         wordSeparators = resources.getString(R.string.word_separators).toSet()
-//        languageModel = LanguageModel.create(this, Model.FLOAT, Device.CPU, 4)
-//        languageModel = HfstLanguageModel()
+        // once a model is ready the candidates are updated, so that its
+        // suggestions show up without waiting for the next keystroke
+        val models = (application as SmartKeyboardApp).models
+        languageModel = models.acquire(ModelRegistry.TFLITE, onModelReady)
+        hfstLanguageModel = models.acquire(ModelRegistry.HFSTOL, onModelReady)
+    }
+
+    override fun onDestroy() {
+        destroyed = true
+        // the models stay loaded for the next instance, unless memory runs short
+        val models = (application as SmartKeyboardApp).models
+        models.release(ModelRegistry.TFLITE, onModelReady)
+        models.release(ModelRegistry.HFSTOL, onModelReady)
+        super.onDestroy()
+    }
+
+    /**
+     * The model, if it has finished loading without error, or else null.
+     * Never waits.
+     */
+    private fun <T> Future<T>?.readyOrNull(): T? {
+        if (this == null || !isDone) return null
+        return try {
+            get()
+        } catch (e: ExecutionException) {
+            null
+        } catch (e: CancellationException) {
+            null
+        }
     }
 
     /**
@@ -446,8 +488,10 @@ class SmartKeyboard : InputMethodService(), KeyboardView.OnKeyboardActionListene
         history = currentInputConnection.getTextBeforeCursor(30, 0) ?: ""
         Log.d("IME", history.toString())
 // FMT: 11-07
-//        val list = getPredictions(history.toString()).toList()
-//        setSuggestions(list)
+        if (predictionOn && !completionOn) {
+            // models still loading just don't contribute yet
+            setSuggestions(getPredictions(history.toString()).toList())
+        }
 
 
 //        if (!completionOn) {
@@ -588,12 +632,25 @@ class SmartKeyboard : InputMethodService(), KeyboardView.OnKeyboardActionListene
 
     // Select candidates and increase the corresponding history
     private fun getPredictions(seed: String): Sequence<String> {
-        // Only interested in the first nPredictions best predictions
-        val candidates = languageModel!!.generate(seed)
-            .entries
-            .sortedByDescending { it.value }
-            .take(N_PREDICTIONS)
-        return  candidates.map{ it.key }.asSequence()
+        // Only interested in the first nPredictions best predictions of
+        // each model that is ready. Their scores aren't on the same scale,
+        // so the models take turns rather than being sorted together.
+        val ranked = listOfNotNull(
+            hfstLanguageModel.readyOrNull()?.generate(seed),
+            languageModel.readyOrNull()?.generate(seed)
+        ).map { candidates ->
+            candidates.entries
+                .sortedByDescending { it.value }
+                .take(N_PREDICTIONS)
+                .map { it.key }
+        }
+        val merged = LinkedHashSet<String>()
+        for (rank in 0 until N_PREDICTIONS) {
+            for (candidates in ranked) {
+                if (rank < candidates.size) merged.add(candidates[rank])
+            }
+        }
+        return merged.take(N_PREDICTIONS).asSequence()
         // Build a word for each candidate NOTE(ckirov): The LM will handle this for now.
         //return candidates.map { buildWord("$seed${it.key}") }.asSequence()
     }
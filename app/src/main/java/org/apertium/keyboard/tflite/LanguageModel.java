@@ -15,7 +15,7 @@ limitations under the License.
 
 package org.apertium.keyboard.tflite;
 
-import android.app.Service;
+import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
@@ -89,7 +89,7 @@ public abstract class LanguageModel {
    * @param numThreads The number of threads to use for classification.
    * @return A classifier with the desired configuration.
    */
-  public static LanguageModel create(Service activity, Model model, Device device, int numThreads)
+  public static LanguageModel create(Context activity, Model model, Device device, int numThreads)
       throws IOException {
     return new LanguageModelMobileNet(activity, device, numThreads);
   }
@@ -112,7 +112,7 @@ public abstract class LanguageModel {
   }
 
   /** Initializes a {@code LanguageModel}. */
-  protected LanguageModel(Service activity, Device device, int numThreads) throws IOException {
+  protected LanguageModel(Context activity, Device device, int numThreads) throws IOException {
     tfliteModel = loadModelFile(activity);
     switch (device) {
       case NNAPI:
@@ -142,7 +142,7 @@ public abstract class LanguageModel {
   }
 
   /** Reads label list from Assets. */
-  private List<String> loadLabelList(Service activity) throws IOException {
+  private List<String> loadLabelList(Context activity) throws IOException {
     List<String> labels = new ArrayList<String>();
     BufferedReader reader =
         new BufferedReader(new InputStreamReader(activity.getAssets().open(getLabelPath())));
@@ -155,7 +155,7 @@ public abstract class LanguageModel {
   }
 
   /** Memory-map the model file in Assets. */
-  private MappedByteBuffer loadModelFile(Service activity) throws IOException {
+  private MappedByteBuffer loadModelFile(Context activity) throws IOException {
     AssetFileDescriptor fileDescriptor = activity.getAssets().openFd(getModelPath());
     FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
     FileChannel fileChannel = inputStream.getChannel();
@@ -255,6 +255,11 @@ public abstract class LanguageModel {
     tfliteModel = null;
   }
 
+  /** An estimate of the memory taken by the model: the size of the mapped model file. */
+  public long getMemoryBytes() {
+    return tfliteModel != null ? tfliteModel.capacity() : 0;
+  }
+
 
   /**
    * Get the name of the model file stored in Assets.
@@ -15,7 +15,7 @@ limitations under the License.
 
 package org.apertium.keyboard.tflite;
 
-import android.app.Service;
+import android.content.Context;
 import java.io.IOException;
 
 /** This TensorFlowLite classifier works with the float MobileNet model. */
@@ -33,12 +33,17 @@ public class LanguageModelMobileNet extends LanguageModel {
    *
    * @param activity
    */
-  public LanguageModelMobileNet(Service activity, Device device, int numThreads)
+  public LanguageModelMobileNet(Context activity, Device device, int numThreads)
       throws IOException {
     super(activity, device, numThreads);
     labelProbArray = new float[1][MAX_HISTORY][getNumLabels()];
   }
 
+  @Override
+  public long getMemoryBytes() {
+    return super.getMemoryBytes() + 4L * MAX_HISTORY * getNumLabels();
+  }
+
   @Override
   protected String getModelPath() {
     return "converted_model.tflite";
@@ -0,0 +1,70 @@
+package org.apertium.keyboard.hfstol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a transducer written in the compact format and mapped back
+ * has the tables the hfstol file decodes to, and looks up the same.
+ */
+public class CompactTransducerTest
+{
+    private static final String MODEL = "src/main/assets/error.model.hfstol";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void weightedRoundTrip() throws Exception
+    { roundTrip(true); }
+
+    @Test
+    public void unweightedRoundTrip() throws Exception
+    { roundTrip(false); }
+
+    @Test
+    public void shippedModelRoundTrip() throws Exception
+    {
+	Transducer read = TransducerLoader.map(new File(MODEL));
+	File compact = folder.newFile("error.model.compact");
+	CompactTransducer.write(read, compact);
+	assertTrue(CompactTransducer.isCompact(compact));
+	Transducer mapped = CompactTransducer.map(compact);
+	Lexicons.assertSameTransducer(read, mapped);
+	for (String input : new String[] {"a", "the", "hello", "mountain", "dog"})
+	    { assertEquals(input, read.analyze(input), mapped.analyze(input)); }
+    }
+
+    @Test
+    public void hfstolIsNotCompact() throws Exception
+    {
+	File hfstol = folder.newFile("model.hfstol");
+	Lexicons.write(Lexicons.random(50, "abcd", "abcde", 5, 1), true, hfstol);
+	assertFalse(CompactTransducer.isCompact(hfstol));
+    }
+
+    private void roundTrip(boolean weighted) throws Exception
+    {
+	for (long seed = 1; seed <= 4; ++seed)
+	    {
+		// enough states for the blocks of packed targets to vary in width
+		Map<String, Map<String, Float>> lexicon = Lexicons.random(1000, "abcdefgh", "abcdefghij", 7, seed);
+		Transducer read = Lexicons.read(lexicon, weighted);
+		File compact = folder.newFile(seed + (weighted ? ".w" : ".u") + ".compact");
+		CompactTransducer.write(read, compact);
+		assertTrue(CompactTransducer.isCompact(compact));
+		Transducer mapped = CompactTransducer.map(compact);
+		Lexicons.assertSameTransducer(read, mapped);
+		for (String input : lexicon.keySet())
+		    { assertEquals(input, read.analyze(input), mapped.analyze(input)); }
+	    }
+    }
+}
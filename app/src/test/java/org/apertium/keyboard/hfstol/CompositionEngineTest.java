@@ -0,0 +1,95 @@
+package org.apertium.keyboard.hfstol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks CompositionEngine against looking each input up in the first
+ * transducer and then each of its outputs in the second.
+ */
+public class CompositionEngineTest
+{
+    @Test
+    public void composedLookupIsTwoLookups() throws Exception
+    {
+	int found = 0;
+	for (long seed = 1; seed <= 4; ++seed)
+	    {
+		Map<String, Map<String, Float>> errors = Lexicons.random(150, "abcd", "abcd", 4, seed);
+		Map<String, Map<String, Float>> lexicon = Lexicons.random(250, "abcd", "vwxyz", 5, seed + 100);
+		Transducer first = Lexicons.read(errors, true);
+		Transducer second = Lexicons.read(lexicon, true);
+		CompositionEngine composed = new CompositionEngine(first, second);
+		LookupEngine firstEngine = first.newLookupEngine();
+		LookupEngine secondEngine = second.newLookupEngine();
+		for (String input : errors.keySet())
+		    {
+			Map<String, Double> expected = twoStep(firstEngine, secondEngine, input);
+			composed.analyze(input, 0);
+			Lexicons.assertSameOutputs("seed " + seed + " input " + input, expected,
+						   Lexicons.lightest(composed.getResults()));
+			found += expected.size();
+		    }
+	    }
+	// the comparison means little if the models never compose
+	assertTrue(found > 100);
+    }
+
+    @Test
+    public void composedLookupFindsTheLightestFirst() throws Exception
+    {
+	Map<String, Map<String, Float>> errors = Lexicons.random(150, "abcd", "abcd", 4, 7);
+	Map<String, Map<String, Float>> lexicon = Lexicons.random(250, "abcd", "vwxyz", 5, 107);
+	Transducer first = Lexicons.read(errors, true);
+	Transducer second = Lexicons.read(lexicon, true);
+	CompositionEngine composed = new CompositionEngine(first, second);
+	LookupEngine firstEngine = first.newLookupEngine();
+	LookupEngine secondEngine = second.newLookupEngine();
+	for (String input : errors.keySet())
+	    {
+		List<Double> expected =
+		    new ArrayList<Double>(twoStep(firstEngine, secondEngine, input).values());
+		Collections.sort(expected);
+		composed.analyze(input, 3);
+		AnalysisResults results = composed.getResults();
+		assertEquals(input, Math.min(3, expected.size()), results.size());
+		for (int i = 0; i < results.size(); ++i)
+		    { assertEquals(input, expected.get(i), results.getWeight(i), 1e-4); }
+	    }
+    }
+
+    /**
+     * The outputs of looking up input in the first transducer and then
+     * every output of that in the second, each with the lightest weight of
+     * the two lookups together.
+     */
+    private static Map<String, Double> twoStep(LookupEngine first, LookupEngine second, String input)
+    {
+	Map<String, Double> outputs = new HashMap<String, Double>();
+	if (first.analyze(input) == LookupEngine.NO_TOKENIZATION)
+	    { return outputs; }
+	Map<String, Float> middles = Lexicons.lightest(first.getResults());
+	for (Map.Entry<String, Float> middle : middles.entrySet())
+	    {
+		if (second.analyze(middle.getKey()) == LookupEngine.NO_TOKENIZATION)
+		    { continue; }
+		Map<String, Float> ends = Lexicons.lightest(second.getResults());
+		for (Map.Entry<String, Float> end : ends.entrySet())
+		    {
+			double weight = (double) middle.getValue() + end.getValue();
+			Double known = outputs.get(end.getKey());
+			if (known == null || weight < known)
+			    { outputs.put(end.getKey(), weight); }
+		    }
+	    }
+	return outputs;
+    }
+}
@@ -0,0 +1,183 @@
+package org.apertium.keyboard.hfstol;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Small transducers for the tests, built from a lexicon that maps each
+ * input word to its outputs and their weights. The transducer is a trie
+ * over pairs of input and output characters, with each entry's weight on
+ * the state it ends in; a word whose output is longer than it ends in
+ * input epsilons. It is written out as hfstol by HfstolWriter.
+ */
+final class Lexicons
+{
+    private Lexicons()
+    {
+    }
+
+    /**
+     * A lexicon of count random words of inputs, from 1 to longest long,
+     * each with one to three random outputs of outputs.
+     */
+    static Map<String, Map<String, Float>> random(int count, String inputs, String outputs,
+						  int longest, long seed)
+    {
+	Random random = new Random(seed);
+	Map<String, Map<String, Float>> lexicon = new TreeMap<String, Map<String, Float>>();
+	while (lexicon.size() < count)
+	    {
+		Map<String, Float> written = new TreeMap<String, Float>();
+		for (int n = 1 + random.nextInt(3); n > 0; --n)
+		    { written.put(word(random, outputs, longest), random.nextInt(40)/8.0f); }
+		lexicon.put(word(random, inputs, longest), written);
+	    }
+	return lexicon;
+    }
+
+    private static String word(Random random, String letters, int longest)
+    {
+	char[] word = new char[1 + random.nextInt(longest)];
+	for (int i = 0; i < word.length; ++i)
+	    { word[i] = letters.charAt(random.nextInt(letters.length())); }
+	return new String(word);
+    }
+
+    /** The transducer of lexicon, decoded by TransducerLoader.load. */
+    static Transducer read(Map<String, Map<String, Float>> lexicon, boolean weighted)
+	throws IOException, FormatException
+    { return TransducerLoader.load(ByteBuffer.wrap(hfstol(lexicon, weighted))); }
+
+    /** Writes the transducer of lexicon to file as hfstol. */
+    static void write(Map<String, Map<String, Float>> lexicon, boolean weighted, File file)
+	throws IOException
+    {
+	FileOutputStream out = new FileOutputStream(file);
+	try {
+	    out.write(hfstol(lexicon, weighted));
+	} finally {
+	    out.close();
+	}
+    }
+
+    /** The hfstol bytes of the transducer of lexicon. */
+    static byte[] hfstol(Map<String, Map<String, Float>> lexicon, boolean weighted) throws IOException
+    {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	HfstolWriter.write(automaton(lexicon), out, "test", weighted);
+	return out.toByteArray();
+    }
+
+    /**
+     * The trie of lexicon over pairs of input and output characters, with
+     * each entry's weight on the state it ends in.
+     */
+    static WeightedAutomaton automaton(Map<String, Map<String, Float>> lexicon)
+    {
+	WeightedAutomaton a = new WeightedAutomaton();
+	// the arcs out of each state, by input and output
+	List<Map<String, Integer>> arcs = new ArrayList<Map<String, Integer>>();
+	arcs.add(new HashMap<String, Integer>());
+	for (Map.Entry<String, Map<String, Float>> entry : lexicon.entrySet())
+	    {
+		String input = entry.getKey();
+		for (Map.Entry<String, Float> output : entry.getValue().entrySet())
+		    {
+			int state = 0;
+			for (int i = 0; i < Math.max(input.length(), output.getKey().length()); ++i)
+			    {
+				String in = letter(input, i);
+				String out = letter(output.getKey(), i);
+				Integer next = arcs.get(state).get(in + "\0" + out);
+				if (next == null)
+				    {
+					next = a.addState();
+					arcs.add(new HashMap<String, Integer>());
+					arcs.get(state).put(in + "\0" + out, next);
+					a.addArc(state, in, out, next, 0.0f);
+				    }
+				state = next;
+			    }
+			a.setFinal(state, output.getValue());
+		    }
+	    }
+	return a;
+    }
+
+    /** The character at i of word, or epsilon past its end. */
+    private static String letter(String word, int i)
+    { return i < word.length() ? word.substring(i, i + 1) : WeightedAutomaton.EPSILON; }
+
+    /**
+     * The outputs of results, each with the lightest weight it comes
+     * with.
+     */
+    static Map<String, Float> lightest(AnalysisResults results)
+    {
+	Map<String, Float> outputs = new HashMap<String, Float>();
+	for (int i = 0; i < results.size(); ++i)
+	    {
+		String output = results.getOutput(i);
+		Float weight = outputs.get(output);
+		if (weight == null || results.getWeight(i) < weight)
+		    { outputs.put(output, results.getWeight(i)); }
+	    }
+	return outputs;
+    }
+
+    /** Asserts that actual has the same outputs as expected, at about the same weights. */
+    static void assertSameOutputs(String message, Map<String, ? extends Number> expected,
+				  Map<String, Float> actual)
+    {
+	assertEquals(message, expected.keySet(), actual.keySet());
+	for (Map.Entry<String, ? extends Number> entry : expected.entrySet())
+	    {
+		assertEquals(message + " " + entry.getKey(), entry.getValue().doubleValue(),
+			     actual.get(entry.getKey()), 1e-4);
+	    }
+    }
+
+    /**
+     * Asserts that actual has the same header counts, alphabet and tables,
+     * entry for entry, as expected.
+     */
+    static void assertSameTransducer(Transducer expected, Transducer actual)
+    {
+	TransducerHeader eh = expected.getHeader();
+	TransducerHeader ah = actual.getHeader();
+	assertEquals(eh.getSymbolCount(), ah.getSymbolCount());
+	assertEquals(eh.getInputSymbolCount(), ah.getInputSymbolCount());
+	assertEquals(eh.isWeighted(), ah.isWeighted());
+	assertEquals(expected.getAlphabet().keyTable, actual.getAlphabet().keyTable);
+	IndexTable ei = expected.getIndexTable();
+	IndexTable ai = actual.getIndexTable();
+	assertEquals(ei.size(), ai.size());
+	for (int i = 0; i < ei.size(); ++i)
+	    {
+		assertEquals("index input " + i, ei.getInput(i), ai.getInput(i));
+		assertEquals("index target " + i, ei.getTarget(i), ai.getTarget(i));
+	    }
+	TransitionTable et = expected.getTransitionTable();
+	TransitionTable at = actual.getTransitionTable();
+	assertEquals(et.size(), at.size());
+	for (int i = 0; i < et.size(); ++i)
+	    {
+		assertEquals("transition input " + i, et.getInput(i), at.getInput(i));
+		assertEquals("transition output " + i, et.getOutput(i), at.getOutput(i));
+		assertEquals("transition target " + i, et.getTarget(i), at.getTarget(i));
+		assertEquals("transition weight " + i, Float.floatToIntBits(et.getWeight(i)),
+			     Float.floatToIntBits(at.getWeight(i)));
+	    }
+    }
+}
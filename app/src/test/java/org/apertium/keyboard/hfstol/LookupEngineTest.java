@@ -0,0 +1,162 @@
+package org.apertium.keyboard.hfstol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks LookupEngine.correct against the lexicon a small transducer was
+ * built from: every entry whose input is within the edits of the word looked
+ * up, weighed with the edit distance between the two.
+ */
+public class LookupEngineTest
+{
+    private static final EditWeights EDITS = new EditWeights(1.0f, 1.5f, 1.0f, 0.5f, 2.0f);
+
+    @Test
+    public void correctFindsWhatEditDistanceFinds() throws Exception
+    {
+	for (long seed = 1; seed <= 6; ++seed)
+	    {
+		Map<String, Map<String, Float>> lexicon = Lexicons.random(300, "abcdef", "abcdefg", 5, seed);
+		LookupEngine engine = Lexicons.read(lexicon, true).newLookupEngine();
+		for (String input : inputs(lexicon, seed))
+		    {
+			Map<String, Double> expected = correct(lexicon, input, EDITS);
+			engine.correct(input, 0, EDITS);
+			Lexicons.assertSameOutputs("seed " + seed + " input " + input, expected,
+						   Lexicons.lightest(engine.getResults()));
+		    }
+	    }
+    }
+
+    @Test
+    public void correctFindsTheLightestFirst() throws Exception
+    {
+	Map<String, Map<String, Float>> lexicon = Lexicons.random(300, "abcdef", "abcdefg", 5, 7);
+	LookupEngine engine = Lexicons.read(lexicon, true).newLookupEngine();
+	for (String input : inputs(lexicon, 7))
+	    {
+		List<Double> expected = new ArrayList<Double>(correct(lexicon, input, EDITS).values());
+		Collections.sort(expected);
+		engine.correct(input, 3, EDITS);
+		AnalysisResults results = engine.getResults();
+		assertEquals(input, Math.min(3, expected.size()), results.size());
+		for (int i = 0; i < results.size(); ++i)
+		    { assertEquals(input, expected.get(i), results.getWeight(i), 1e-4); }
+	    }
+    }
+
+    @Test
+    public void correctWithoutEditsIsLookup() throws Exception
+    {
+	Map<String, Map<String, Float>> lexicon = Lexicons.random(300, "abcdef", "abcdefg", 5, 8);
+	Transducer t = Lexicons.read(lexicon, true);
+	LookupEngine lookup = t.newLookupEngine();
+	LookupEngine correction = t.newLookupEngine();
+	// edits too heavy to make leave only what the input reads as it is
+	EditWeights none = new EditWeights(3.0f, 3.0f, 3.0f, 3.0f, 2.0f);
+	for (String input : lexicon.keySet())
+	    {
+		lookup.analyze(input);
+		correction.correct(input, 0, none);
+		Lexicons.assertSameOutputs(input, Lexicons.lightest(lookup.getResults()),
+					   Lexicons.lightest(correction.getResults()));
+	    }
+    }
+
+    /**
+     * Inputs of the lexicon, each also with a letter changed, dropped,
+     * added or swapped with the next.
+     */
+    private static List<String> inputs(Map<String, Map<String, Float>> lexicon, long seed)
+    {
+	Random random = new Random(seed);
+	List<String> inputs = new ArrayList<String>();
+	for (String word : lexicon.keySet())
+	    {
+		if (inputs.size() >= 60 || random.nextInt(4) != 0)
+		    { continue; }
+		inputs.add(word);
+		int at = random.nextInt(word.length());
+		char letter = (char) ('a' + random.nextInt(26));
+		inputs.add(word.substring(0, at) + letter + word.substring(at + 1));
+		inputs.add(word.substring(0, at) + word.substring(at + 1));
+		inputs.add(word.substring(0, at) + letter + word.substring(at));
+		if (at + 1 < word.length())
+		    {
+			inputs.add(word.substring(0, at) + word.charAt(at + 1) + word.charAt(at) +
+				   word.substring(at + 2));
+		    }
+	    }
+	assertTrue(inputs.size() > 10);
+	return inputs;
+    }
+
+    /**
+     * Every output of an entry of lexicon whose input is within edits of
+     * input, with its lightest weight.
+     */
+    private static Map<String, Double> correct(Map<String, Map<String, Float>> lexicon, String input,
+					       EditWeights edits)
+    {
+	Map<String, Double> outputs = new HashMap<String, Double>();
+	for (Map.Entry<String, Map<String, Float>> entry : lexicon.entrySet())
+	    {
+		double cost = distance(entry.getKey(), input, edits);
+		if (cost > edits.maxCost)
+		    { continue; }
+		for (Map.Entry<String, Float> output : entry.getValue().entrySet())
+		    {
+			double total = output.getValue() + cost;
+			Double known = outputs.get(output.getKey());
+			if (known == null || total < known)
+			    { outputs.put(output.getKey(), total); }
+		    }
+	    }
+	return outputs;
+    }
+
+    /**
+     * The lightest edits that turn input into read, where a swapped pair
+     * of different letters isn't edited any further.
+     */
+    private static double distance(String read, String input, EditWeights edits)
+    {
+	int m = input.length();
+	int n = read.length();
+	double[][] d = new double[m + 1][n + 1];
+	for (int i = 0; i <= m; ++i)
+	    {
+		for (int j = 0; j <= n; ++j)
+		    {
+			if (i == 0 && j == 0)
+			    { continue; }
+			double best = Double.MAX_VALUE;
+			if (i > 0)
+			    { best = Math.min(best, d[i - 1][j] + edits.deletion); }
+			if (j > 0)
+			    { best = Math.min(best, d[i][j - 1] + edits.insertion); }
+			if (i > 0 && j > 0)
+			    {
+				boolean same = input.charAt(i - 1) == read.charAt(j - 1);
+				best = Math.min(best, d[i - 1][j - 1] + (same ? 0 : edits.substitution));
+			    }
+			if (i > 1 && j > 1 && input.charAt(i - 1) != input.charAt(i - 2) &&
+			    input.charAt(i - 1) == read.charAt(j - 2) &&
+			    input.charAt(i - 2) == read.charAt(j - 1))
+			    { best = Math.min(best, d[i - 2][j - 2] + edits.transposition); }
+			d[i][j] = best;
+		    }
+	    }
+	return d[m][n];
+    }
+}
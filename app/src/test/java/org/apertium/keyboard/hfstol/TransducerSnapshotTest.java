@@ -0,0 +1,85 @@
+package org.apertium.keyboard.hfstol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a snapshot reads back as the transducer it was made from,
+ * and that it is only used for the source it was made from.
+ */
+public class TransducerSnapshotTest
+{
+    private static final long LENGTH = 12345;
+    private static final long STAMP = 67890;
+    private static final String MODEL = "src/main/assets/error.model.hfstol";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void weightedRoundTrip() throws Exception
+    { roundTrip(true); }
+
+    @Test
+    public void unweightedRoundTrip() throws Exception
+    { roundTrip(false); }
+
+    @Test
+    public void shippedModelRoundTrip() throws Exception
+    {
+	Transducer mapped = TransducerLoader.map(new File(MODEL));
+	File snapshot = new File(folder.getRoot(), "error.model.snapshot");
+	TransducerSnapshot.write(mapped, snapshot, LENGTH, STAMP);
+	Transducer read = TransducerSnapshot.read(snapshot, LENGTH, STAMP);
+	Lexicons.assertSameTransducer(mapped, read);
+	for (String input : new String[] {"a", "the", "hello", "mountain", "dog"})
+	    { assertEquals(input, mapped.analyze(input), read.analyze(input)); }
+    }
+
+    @Test
+    public void staleSnapshotIsIgnored() throws Exception
+    {
+	Transducer t = Lexicons.read(Lexicons.random(50, "abcd", "abcde", 5, 1), true);
+	File snapshot = new File(folder.getRoot(), "model.snapshot");
+	assertNull(TransducerSnapshot.read(snapshot, LENGTH, STAMP));
+	TransducerSnapshot.write(t, snapshot, LENGTH, STAMP);
+	assertNotNull(TransducerSnapshot.read(snapshot, LENGTH, STAMP));
+	assertNull(TransducerSnapshot.read(snapshot, LENGTH + 1, STAMP));
+	assertNull(TransducerSnapshot.read(snapshot, LENGTH, STAMP + 1));
+    }
+
+    @Test
+    public void loadWritesThenReadsTheSnapshot() throws Exception
+    {
+	File source = folder.newFile("model.hfstol");
+	Lexicons.write(Lexicons.random(200, "abcd", "abcde", 5, 2), true, source);
+	File snapshot = new File(folder.getRoot(), "model.snapshot");
+	Transducer first = TransducerSnapshot.load(source, snapshot);
+	assertNotNull(TransducerSnapshot.read(source, snapshot));
+	Transducer second = TransducerSnapshot.load(source, snapshot);
+	Lexicons.assertSameTransducer(first, second);
+    }
+
+    private void roundTrip(boolean weighted) throws Exception
+    {
+	for (long seed = 1; seed <= 4; ++seed)
+	    {
+		Map<String, Map<String, Float>> lexicon = Lexicons.random(500, "abcdefgh", "abcdefghij", 7, seed);
+		Transducer read = Lexicons.read(lexicon, weighted);
+		File snapshot = new File(folder.getRoot(), seed + (weighted ? ".w" : ".u") + ".snapshot");
+		TransducerSnapshot.write(read, snapshot, LENGTH, STAMP);
+		Transducer mapped = TransducerSnapshot.read(snapshot, LENGTH, STAMP);
+		Lexicons.assertSameTransducer(read, mapped);
+		for (String input : lexicon.keySet())
+		    { assertEquals(input, read.analyze(input), mapped.analyze(input)); }
+	    }
+    }
+}
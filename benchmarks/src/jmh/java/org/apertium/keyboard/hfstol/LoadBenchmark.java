@@ -0,0 +1,87 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * How long each part of loading a transducer takes: parsing the header,
+ * parsing the alphabet, and setting up the whole transducer the three ways
+ * TransducerLoader can. The file is read into memory once up front, so
+ * that only map measures the file system, and that mostly through the page
+ * cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoadBenchmark
+{
+    @Param({"error.model", "synthetic-100000.w", "synthetic-100000.u", "synthetic-2000000.w"})
+    public String model;
+
+    private File file;
+    private ByteBuffer bytes;
+    private int alphabetStart;
+    private int symbolCount;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, FormatException
+    {
+	file = Models.file(model);
+	FileInputStream in = new FileInputStream(file);
+	try {
+	    bytes = TransducerLoader.readAll(in);
+	} finally {
+	    in.close();
+	}
+	ByteBuffer buffer = bytes.duplicate();
+	symbolCount = new TransducerHeader(buffer).getSymbolCount();
+	alphabetStart = buffer.position();
+	pool = new ForkJoinPool();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    { pool.shutdown(); }
+
+    @Benchmark
+    public TransducerHeader header() throws IOException, FormatException
+    { return new TransducerHeader(bytes.duplicate()); }
+
+    @Benchmark
+    public TransducerAlphabet alphabet() throws IOException
+    {
+	ByteBuffer buffer = bytes.duplicate();
+	buffer.position(alphabetStart);
+	return new TransducerAlphabet(buffer, symbolCount);
+    }
+
+    /** The tables read in place from the bytes, as from a mapped file. */
+    @Benchmark
+    public Transducer inPlace() throws IOException, FormatException
+    { return TransducerLoader.load(bytes.duplicate()); }
+
+    /** The tables decoded into arrays on the threads of a pool. */
+    @Benchmark
+    public Transducer decoded() throws IOException, FormatException
+    { return TransducerLoader.read(bytes.duplicate(), pool); }
+
+    @Benchmark
+    public Transducer mapped() throws IOException, FormatException
+    { return TransducerLoader.map(file); }
+}
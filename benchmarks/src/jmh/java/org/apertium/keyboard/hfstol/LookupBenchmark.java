@@ -0,0 +1,57 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Lookups through WeightedTransducer.analyze and UnweightedTransducer.analyze,
+ * depending on the model, each call taking the next of the model's inputs
+ * in turn. Throughput mode gives lookups per second, and sample mode the
+ * distribution of single lookup times, whose tail is what a user typing
+ * notices. The gc profiler the build turns on adds the bytes allocated
+ * per lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LookupBenchmark
+{
+    @Param({"error.model", "synthetic-100000.w", "synthetic-100000.u",
+	    "synthetic-2000000.w", "synthetic-2000000.u"})
+    public String model;
+
+    private Transducer transducer;
+    private String[] inputs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, FormatException, NoTokenizationException
+    {
+	transducer = TransducerLoader.map(Models.file(model));
+	List<String> list = Models.inputs(model);
+	inputs = list.toArray(new String[list.size()]);
+	// the first lookups grow the pooled engine to fit the inputs
+	for (String input : inputs)
+	    { transducer.analyze(input); }
+    }
+
+    @Benchmark
+    public Collection<String> analyze() throws NoTokenizationException
+    {
+	String input = inputs[next];
+	next = next + 1 == inputs.length ? 0 : next + 1;
+	return transducer.analyze(input);
+    }
+}
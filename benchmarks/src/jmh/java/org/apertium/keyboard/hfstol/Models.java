@@ -0,0 +1,110 @@
+package org.apertium.keyboard.hfstol;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The models the benchmarks run over, by name:
+ *
+ * error.model -- the error model shipped in the app's assets, found
+ * through the hfstol.assets property.
+ *
+ * synthetic-N.w and synthetic-N.u -- a transducer from
+ * TransducerGenerator with N states and the generator's default shape,
+ * weighted or not. It is generated into the directory named by the
+ * hfstol.models property the first time it is asked for, along with
+ * inputs sampled from it, and reused after that. synthetic-2000000 has
+ * about ten million transitions.
+ */
+final class Models
+{
+    static final int FAN_OUT = 4;
+    static final double EPSILONS = 0.1;
+    static final double FLAGS = 0.05;
+    static final long SEED = 1;
+    static final int INPUT_COUNT = 1000;
+
+    // typed words, with and without typos, in the letters the error model
+    // knows, which leave out f, q, r, x and z
+    private static final List<String> ERROR_MODEL_INPUTS = Arrays.asList(
+	"the", "teh", "hello", "helo", "language", "sentence", "sentense", "and",
+	"a", "che", "nde", "ha", "jagua", "kuimbae", "upe", "tembiapo", "ikatu",
+	"pe", "jaha", "mba-e");
+
+    private Models()
+    {
+    }
+
+    /** The hfstol file of the model called name. */
+    static File file(String name) throws IOException
+    {
+	if (name.equals("error.model"))
+	    { return new File(property("hfstol.assets"), "error.model.hfstol"); }
+	File file = new File(property("hfstol.models"), name + ".hfstol");
+	if (!file.exists() || !words(name).exists())
+	    { generate(name); }
+	return file;
+    }
+
+    /** Inputs to look up in the model called name. */
+    static List<String> inputs(String name) throws IOException
+    {
+	if (name.equals("error.model"))
+	    { return ERROR_MODEL_INPUTS; }
+	file(name);
+	List<String> inputs = new ArrayList<String>();
+	BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(words(name)), "UTF-8"));
+	try {
+	    for (String line = in.readLine(); line != null; line = in.readLine())
+		{ inputs.add(line); }
+	} finally {
+	    in.close();
+	}
+	return inputs;
+    }
+
+    private static void generate(String name) throws IOException
+    {
+	// synthetic-N.w or synthetic-N.u
+	if (!name.startsWith("synthetic-") || !(name.endsWith(".w") || name.endsWith(".u")))
+	    { throw new IllegalArgumentException("No model " + name); }
+	int states = Integer.parseInt(name.substring("synthetic-".length(), name.length() - 2));
+	boolean weighted = name.endsWith(".w");
+	TransducerGenerator generator = TransducerGenerator.generate(states, FAN_OUT, EPSILONS, FLAGS, SEED);
+	File dir = new File(property("hfstol.models"));
+	dir.mkdirs();
+	// written under another name first, so that a run killed halfway
+	// doesn't leave a truncated model to be picked up next time
+	File partial = new File(dir, name + ".hfstol.part");
+	HfstolWriter.write(generator.getAutomaton(), partial, name, weighted);
+	PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(words(name)), "UTF-8"));
+	try {
+	    for (String input : generator.sampleInputs(INPUT_COUNT, SEED))
+		{ out.println(input); }
+	} finally {
+	    out.close();
+	}
+	if (!partial.renameTo(new File(dir, name + ".hfstol")))
+	    { throw new IOException("Can't rename " + partial); }
+    }
+
+    private static File words(String name)
+    { return new File(property("hfstol.models"), name + ".words"); }
+
+    private static String property(String key)
+    {
+	String value = System.getProperty(key);
+	if (value == null)
+	    { throw new IllegalStateException("Set " + key + ", as the benchmarks build does"); }
+	return value;
+    }
+}